@@ -0,0 +1,141 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.content.Context;
+
+import com.criticalblue.approovsdk.Approov;
+
+import java.util.List;
+import java.util.Map;
+
+// AndroidApproovSdk implements the ApproovSdk facade using the Approov SDK itself. This is the only class
+// that calls the Approov SDK directly.
+final class AndroidApproovSdk implements ApproovSdk {
+
+    /**
+     * Initializes the Approov SDK.
+     *
+     * @param context the Application context
+     * @param config the configuration string, or empty for no SDK initialization
+     * @throws IllegalArgumentException if the initialization failed
+     */
+    void initialize(Context context, String config) {
+        if (config.length() != 0)
+            Approov.initialize(context, config, "auto", "init-fetch");
+        Approov.setUserProperty("approov-service-okhttp");
+    }
+
+    @Override
+    public void setDevKey(String devKey) {
+        Approov.setDevKey(devKey);
+    }
+
+    @Override
+    public Result fetchApproovTokenAndWait(String url) {
+        return toResult(Approov.fetchApproovTokenAndWait(url));
+    }
+
+    @Override
+    public void fetchApproovToken(Callback callback, String url) {
+        Approov.fetchApproovToken(new CallbackAdapter(callback), url);
+    }
+
+    @Override
+    public Result fetchSecureStringAndWait(String key, String newDef) {
+        return toResult(Approov.fetchSecureStringAndWait(key, newDef));
+    }
+
+    @Override
+    public void fetchSecureString(Callback callback, String key, String newDef) {
+        Approov.fetchSecureString(new CallbackAdapter(callback), key, newDef);
+    }
+
+    @Override
+    public Result fetchCustomJWTAndWait(String payload) {
+        return toResult(Approov.fetchCustomJWTAndWait(payload));
+    }
+
+    @Override
+    public Map<String, List<String>> getPins(String pinType) {
+        return Approov.getPins(pinType);
+    }
+
+    @Override
+    public String fetchConfig() {
+        return Approov.fetchConfig();
+    }
+
+    @Override
+    public void setDataHashInToken(String data) {
+        Approov.setDataHashInToken(data);
+    }
+
+    @Override
+    public String getMessageSignature(String message) {
+        return Approov.getMessageSignature(message);
+    }
+
+    @Override
+    public String getDeviceID() {
+        return Approov.getDeviceID();
+    }
+
+    /**
+     * Converts a result from the Approov SDK to a facade result.
+     *
+     * @param result is the Approov SDK result
+     * @return the equivalent facade result
+     */
+    private static Result toResult(Approov.TokenFetchResult result) {
+        return new Result(toStatus(result.getStatus()), result.getToken(), result.getSecureString(),
+                result.getARC(), result.getRejectionReasons(), result.getLoggableToken(),
+                result.isConfigChanged(), result.isForceApplyPins());
+    }
+
+    /**
+     * Converts a status from the Approov SDK to a facade status. Any status that is unknown to the
+     * facade is treated as an internal error.
+     *
+     * @param status is the Approov SDK status
+     * @return the equivalent facade status
+     */
+    private static Status toStatus(Approov.TokenFetchStatus status) {
+        try {
+            return Status.valueOf(status.name());
+        }
+        catch (IllegalArgumentException e) {
+            return Status.INTERNAL_ERROR;
+        }
+    }
+
+    // CallbackAdapter provides results from the Approov SDK to a facade callback
+    private static final class CallbackAdapter implements Approov.TokenFetchCallback {
+        // the facade callback to receive the result
+        private final Callback callback;
+
+        CallbackAdapter(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void approovCallback(Approov.TokenFetchResult result) {
+            callback.approovCallback(toResult(result));
+        }
+    }
+}
@@ -0,0 +1,346 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// ApproovConfig is an immutable snapshot of the configuration of the ApproovService that is used by the
+// interceptors. A new snapshot is published whenever the configuration changes, so it can be read by any
+// thread without locking.
+final class ApproovConfig {
+    // default header that will be added to Approov enabled requests
+    static final String APPROOV_TOKEN_HEADER = "Approov-Token";
+
+    // default prefix to be added before the Approov token by default
+    static final String APPROOV_TOKEN_PREFIX = "";
+
+    // version of the configuration, which increases each time a new configuration is published
+    private final long version;
+
+    // header to be used to send Approov tokens
+    private final String approovTokenHeader;
+
+    // any prefix String to be added before the transmitted Approov token
+    private final String approovTokenPrefix;
+
+    // any header to be used for binding in Approov tokens or null if not set
+    private final String bindingHeader;
+
+    // true if the interceptor should proceed on network failures and not add an Approov token
+    private final boolean proceedOnNetworkFail;
+
+    // true if pins are checked dynamically on each connection rather than being fixed when a client is built
+    private final boolean dynamicPinning;
+
+    // true if a request that requires the pins to be applied is retried on a rebuilt client rather than failing
+    private final boolean retryOnForceApplyPins;
+
+    // map of headers that should have their values substituted for secure strings, mapped to their
+    // required prefixes
+    private final Map<String, String> substitutionHeaders;
+
+    // set of query parameters that may be substituted, specified by the key name
+    private final Set<String> substitutionQueryParams;
+
+    // set of URL regexs that should be excluded from any Approov protection, mapped to the compiled Pattern
+    private final Map<String, Pattern> exclusionURLRegexs;
+
+    // set of hosts that should be excluded from any Approov protection
+    private final Set<String> exclusionHosts;
+
+    // set of host suffixes (domains) whose hosts should be excluded from any Approov protection
+    private final Set<String> exclusionHostSuffixes;
+
+    // map of hosts to the set of URL path prefixes on them that should be excluded from any Approov protection
+    private final Map<String, Set<String>> exclusionPathPrefixes;
+
+    // matcher compiled from all of the exclusions, shared by all interceptors using this configuration and
+    // created on first use so that intermediate configurations are never compiled
+    private volatile ExclusionMatcher exclusionMatcher;
+
+    /**
+     * Constructs a configuration from a builder.
+     *
+     * @param builder is the builder holding the configuration
+     * @param version is the version of the configuration
+     */
+    private ApproovConfig(Builder builder, long version) {
+        this.version = version;
+        this.approovTokenHeader = builder.approovTokenHeader;
+        this.approovTokenPrefix = builder.approovTokenPrefix;
+        this.bindingHeader = builder.bindingHeader;
+        this.proceedOnNetworkFail = builder.proceedOnNetworkFail;
+        this.dynamicPinning = builder.dynamicPinning;
+        this.retryOnForceApplyPins = builder.retryOnForceApplyPins;
+        this.substitutionHeaders = Collections.unmodifiableMap(new HashMap<>(builder.substitutionHeaders));
+        this.substitutionQueryParams = Collections.unmodifiableSet(new HashSet<>(builder.substitutionQueryParams));
+        this.exclusionURLRegexs = Collections.unmodifiableMap(new HashMap<>(builder.exclusionURLRegexs));
+        this.exclusionHosts = Collections.unmodifiableSet(new HashSet<>(builder.exclusionHosts));
+        this.exclusionHostSuffixes = Collections.unmodifiableSet(new HashSet<>(builder.exclusionHostSuffixes));
+        Map<String, Set<String>> pathPrefixes = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry: builder.exclusionPathPrefixes.entrySet())
+            pathPrefixes.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        this.exclusionPathPrefixes = Collections.unmodifiableMap(pathPrefixes);
+    }
+
+    /**
+     * Creates the initial default configuration.
+     *
+     * @return the default configuration
+     */
+    static ApproovConfig createDefault() {
+        return new Builder().build(0);
+    }
+
+    /**
+     * Creates a builder holding a copy of this configuration, so that a changed version may be built.
+     *
+     * @return a new builder initialized from this configuration
+     */
+    Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    String getApproovTokenHeader() {
+        return approovTokenHeader;
+    }
+
+    String getApproovTokenPrefix() {
+        return approovTokenPrefix;
+    }
+
+    String getBindingHeader() {
+        return bindingHeader;
+    }
+
+    boolean isProceedOnNetworkFail() {
+        return proceedOnNetworkFail;
+    }
+
+    boolean isDynamicPinning() {
+        return dynamicPinning;
+    }
+
+    boolean isRetryOnForceApplyPins() {
+        return retryOnForceApplyPins;
+    }
+
+    Map<String, String> getSubstitutionHeaders() {
+        return substitutionHeaders;
+    }
+
+    Set<String> getSubstitutionQueryParams() {
+        return substitutionQueryParams;
+    }
+
+    Map<String, Pattern> getExclusionURLRegexs() {
+        return exclusionURLRegexs;
+    }
+
+    Set<String> getExclusionHosts() {
+        return exclusionHosts;
+    }
+
+    Set<String> getExclusionHostSuffixes() {
+        return exclusionHostSuffixes;
+    }
+
+    Map<String, Set<String>> getExclusionPathPrefixes() {
+        return exclusionPathPrefixes;
+    }
+
+    /**
+     * Gets the matcher for all of the exclusions in this configuration. This is compiled once for the
+     * configuration and shared between all of the interceptors that use it.
+     *
+     * @return the exclusion matcher
+     */
+    ExclusionMatcher getExclusionMatcher() {
+        ExclusionMatcher matcher = exclusionMatcher;
+        if (matcher == null) {
+            synchronized (this) {
+                matcher = exclusionMatcher;
+                if (matcher == null) {
+                    matcher = new ExclusionMatcher(exclusionURLRegexs.values(), exclusionHosts,
+                            exclusionHostSuffixes, exclusionPathPrefixes);
+                    exclusionMatcher = matcher;
+                }
+            }
+        }
+        return matcher;
+    }
+
+    // Builder holds a mutable copy of a configuration so that changes can be made before a new immutable
+    // configuration is built
+    static final class Builder {
+        private String approovTokenHeader = APPROOV_TOKEN_HEADER;
+        private String approovTokenPrefix = APPROOV_TOKEN_PREFIX;
+        private String bindingHeader = null;
+        private boolean proceedOnNetworkFail = false;
+        private boolean dynamicPinning = false;
+        private boolean retryOnForceApplyPins = false;
+        private final Map<String, String> substitutionHeaders = new HashMap<>();
+        private final Set<String> substitutionQueryParams = new HashSet<>();
+        private final Map<String, Pattern> exclusionURLRegexs = new HashMap<>();
+        private final Set<String> exclusionHosts = new HashSet<>();
+        private final Set<String> exclusionHostSuffixes = new HashSet<>();
+        private final Map<String, Set<String>> exclusionPathPrefixes = new HashMap<>();
+
+        /**
+         * Constructs a builder for the default configuration.
+         */
+        Builder() {
+        }
+
+        /**
+         * Constructs a builder initialized from an existing configuration.
+         *
+         * @param config is the configuration to be copied
+         */
+        Builder(ApproovConfig config) {
+            approovTokenHeader = config.approovTokenHeader;
+            approovTokenPrefix = config.approovTokenPrefix;
+            bindingHeader = config.bindingHeader;
+            proceedOnNetworkFail = config.proceedOnNetworkFail;
+            dynamicPinning = config.dynamicPinning;
+            retryOnForceApplyPins = config.retryOnForceApplyPins;
+            substitutionHeaders.putAll(config.substitutionHeaders);
+            substitutionQueryParams.addAll(config.substitutionQueryParams);
+            exclusionURLRegexs.putAll(config.exclusionURLRegexs);
+            exclusionHosts.addAll(config.exclusionHosts);
+            exclusionHostSuffixes.addAll(config.exclusionHostSuffixes);
+            for (Map.Entry<String, Set<String>> entry: config.exclusionPathPrefixes.entrySet())
+                exclusionPathPrefixes.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+
+        Builder setProceedOnNetworkFail(boolean proceed) {
+            proceedOnNetworkFail = proceed;
+            return this;
+        }
+
+        Builder setDynamicPinning(boolean dynamic) {
+            dynamicPinning = dynamic;
+            return this;
+        }
+
+        Builder setRetryOnForceApplyPins(boolean retry) {
+            retryOnForceApplyPins = retry;
+            return this;
+        }
+
+        Builder setApproovHeader(String header, String prefix) {
+            approovTokenHeader = header;
+            approovTokenPrefix = prefix;
+            return this;
+        }
+
+        Builder setBindingHeader(String header) {
+            bindingHeader = header;
+            return this;
+        }
+
+        Builder addSubstitutionHeader(String header, String requiredPrefix) {
+            substitutionHeaders.put(header, (requiredPrefix == null) ? "" : requiredPrefix);
+            return this;
+        }
+
+        Builder removeSubstitutionHeader(String header) {
+            substitutionHeaders.remove(header);
+            return this;
+        }
+
+        Builder addSubstitutionQueryParam(String key) {
+            substitutionQueryParams.add(key);
+            return this;
+        }
+
+        Builder removeSubstitutionQueryParam(String key) {
+            substitutionQueryParams.remove(key);
+            return this;
+        }
+
+        Builder addExclusionURLRegex(String urlRegex, Pattern pattern) {
+            exclusionURLRegexs.put(urlRegex, pattern);
+            return this;
+        }
+
+        Builder removeExclusionURLRegex(String urlRegex) {
+            exclusionURLRegexs.remove(urlRegex);
+            return this;
+        }
+
+        Builder addExclusionHost(String host) {
+            exclusionHosts.add(host);
+            return this;
+        }
+
+        Builder removeExclusionHost(String host) {
+            exclusionHosts.remove(host);
+            return this;
+        }
+
+        Builder addExclusionHostSuffix(String hostSuffix) {
+            exclusionHostSuffixes.add(hostSuffix);
+            return this;
+        }
+
+        Builder removeExclusionHostSuffix(String hostSuffix) {
+            exclusionHostSuffixes.remove(hostSuffix);
+            return this;
+        }
+
+        Builder addExclusionPathPrefix(String host, String pathPrefix) {
+            Set<String> pathPrefixes = exclusionPathPrefixes.get(host);
+            if (pathPrefixes == null) {
+                pathPrefixes = new HashSet<>();
+                exclusionPathPrefixes.put(host, pathPrefixes);
+            }
+            pathPrefixes.add(pathPrefix);
+            return this;
+        }
+
+        Builder removeExclusionPathPrefix(String host, String pathPrefix) {
+            Set<String> pathPrefixes = exclusionPathPrefixes.get(host);
+            if (pathPrefixes != null) {
+                pathPrefixes.remove(pathPrefix);
+                if (pathPrefixes.isEmpty())
+                    exclusionPathPrefixes.remove(host);
+            }
+            return this;
+        }
+
+        /**
+         * Builds an immutable configuration.
+         *
+         * @param version is the version of the new configuration
+         * @return the new configuration
+         */
+        ApproovConfig build(long version) {
+            return new ApproovConfig(this, version);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// ApproovConfigEditor collects configuration changes made within ApproovService.configure. The changes are
+// made to a private copy of the configuration and are only applied, all at once, if the ApproovConfigurator
+// completes without an exception. The methods correspond to the individual ApproovService setters, which
+// should be consulted for full details of each setting.
+public final class ApproovConfigEditor {
+    // builder holding the changed configuration
+    private final ApproovConfig.Builder builder;
+
+    // true if any change has been made
+    private boolean modified;
+
+    /**
+     * Constructs an editor for changes to a configuration.
+     *
+     * @param builder is the builder holding a copy of the configuration to be changed
+     */
+    ApproovConfigEditor(ApproovConfig.Builder builder) {
+        this.builder = builder;
+        this.modified = false;
+    }
+
+    /**
+     * Sets a flag indicating if the network interceptor should proceed anyway if it is not possible to
+     * obtain an Approov token due to a networking failure.
+     *
+     * @param proceed is true if Approov networking fails should allow continuation
+     * @return this editor
+     */
+    public ApproovConfigEditor setProceedOnNetworkFail(boolean proceed) {
+        builder.setProceedOnNetworkFail(proceed);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Sets whether dynamic pinning should be used.
+     *
+     * @param dynamic is true if dynamic pinning should be used
+     * @return this editor
+     */
+    public ApproovConfigEditor setDynamicPinning(boolean dynamic) {
+        builder.setDynamicPinning(dynamic);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Sets whether a request should be retried transparently if it cannot proceed because new pins need
+     * to be applied.
+     *
+     * @param retry is true if requests should be retried when the pins need to be applied
+     * @return this editor
+     */
+    public ApproovConfigEditor setRetryOnForceApplyPins(boolean retry) {
+        builder.setRetryOnForceApplyPins(retry);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Sets the header that the Approov token is added on, as well as an optional prefix String.
+     *
+     * @param header is the header to place the Approov token on
+     * @param prefix is any prefix String for the Approov token header, or null for none
+     * @return this editor
+     * @throws ApproovException if the header is invalid
+     */
+    public ApproovConfigEditor setApproovHeader(String header, String prefix) throws ApproovException {
+        checkNotEmpty("Approov header", header);
+        builder.setApproovHeader(header, (prefix == null) ? "" : prefix);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Sets a binding header that must be present on all requests using the Approov service.
+     *
+     * @param header is the header to use for Approov token binding, or null to remove any binding
+     * @return this editor
+     */
+    public ApproovConfigEditor setBindingHeader(String header) {
+        builder.setBindingHeader(header);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds the name of a header which should be subject to secure strings substitution.
+     *
+     * @param header is the header to be marked for substitution
+     * @param requiredPrefix is any required prefix to the value being substituted or null if not required
+     * @return this editor
+     * @throws ApproovException if the header is invalid
+     */
+    public ApproovConfigEditor addSubstitutionHeader(String header, String requiredPrefix) throws ApproovException {
+        checkNotEmpty("substitution header", header);
+        builder.addSubstitutionHeader(header, requiredPrefix);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes a header previously added for substitution.
+     *
+     * @param header is the header to be removed for substitution
+     * @return this editor
+     */
+    public ApproovConfigEditor removeSubstitutionHeader(String header) {
+        builder.removeSubstitutionHeader(header);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds a key name for a query parameter that should be subject to secure strings substitution.
+     *
+     * @param key is the query parameter key name to be added for substitution
+     * @return this editor
+     * @throws ApproovException if the key is invalid
+     */
+    public ApproovConfigEditor addSubstitutionQueryParam(String key) throws ApproovException {
+        checkNotEmpty("substitution query parameter", key);
+        builder.addSubstitutionQueryParam(key);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes a query parameter key name previously added for substitution.
+     *
+     * @param key is the query parameter key name to be removed for substitution
+     * @return this editor
+     */
+    public ApproovConfigEditor removeSubstitutionQueryParam(String key) {
+        builder.removeSubstitutionQueryParam(key);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds an exclusion URL regular expression. The regular expression is compiled immediately so that any
+     * error is reported before the configuration is applied.
+     *
+     * @param urlRegex is the regular expression that will be compared against URLs to exclude them
+     * @return this editor
+     * @throws ApproovException if the regular expression is invalid
+     */
+    public ApproovConfigEditor addExclusionURLRegex(String urlRegex) throws ApproovException {
+        checkNotEmpty("exclusion URL regex", urlRegex);
+        try {
+            builder.addExclusionURLRegex(urlRegex, Pattern.compile(urlRegex));
+        } catch (PatternSyntaxException e) {
+            throw new ApproovException("IllegalArgument: exclusion URL regex " + urlRegex + ": " + e.getMessage());
+        }
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes an exclusion URL regular expression previously added.
+     *
+     * @param urlRegex is the regular expression that will be compared against URLs to exclude them
+     * @return this editor
+     */
+    public ApproovConfigEditor removeExclusionURLRegex(String urlRegex) {
+        builder.removeExclusionURLRegex(urlRegex);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds a host to be excluded from any Approov protection.
+     *
+     * @param host is the host name to be excluded
+     * @return this editor
+     * @throws ApproovException if the host is invalid
+     */
+    public ApproovConfigEditor addExclusionHost(String host) throws ApproovException {
+        checkNotEmpty("exclusion host", host);
+        builder.addExclusionHost(host.toLowerCase(Locale.US));
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes a host previously added to the exclusions.
+     *
+     * @param host is the host name to be removed from the exclusions
+     * @return this editor
+     * @throws ApproovException if the host is invalid
+     */
+    public ApproovConfigEditor removeExclusionHost(String host) throws ApproovException {
+        checkNotEmpty("exclusion host", host);
+        builder.removeExclusionHost(host.toLowerCase(Locale.US));
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds a host suffix to be excluded from any Approov protection.
+     *
+     * @param hostSuffix is the domain to be excluded along with all of its subdomains
+     * @return this editor
+     * @throws ApproovException if the host suffix is invalid
+     */
+    public ApproovConfigEditor addExclusionHostSuffix(String hostSuffix) throws ApproovException {
+        checkNotEmpty("exclusion host suffix", hostSuffix);
+        builder.addExclusionHostSuffix(ExclusionMatcher.normalizeHostSuffix(hostSuffix));
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes a host suffix previously added to the exclusions.
+     *
+     * @param hostSuffix is the domain to be removed from the exclusions
+     * @return this editor
+     * @throws ApproovException if the host suffix is invalid
+     */
+    public ApproovConfigEditor removeExclusionHostSuffix(String hostSuffix) throws ApproovException {
+        checkNotEmpty("exclusion host suffix", hostSuffix);
+        builder.removeExclusionHostSuffix(ExclusionMatcher.normalizeHostSuffix(hostSuffix));
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Adds a URL path prefix on a host to be excluded from any Approov protection.
+     *
+     * @param host is the host name on which the path prefix is excluded
+     * @param pathPrefix is the path prefix to be excluded, such as "/static/"
+     * @return this editor
+     * @throws ApproovException if the host or path prefix is invalid
+     */
+    public ApproovConfigEditor addExclusionPathPrefix(String host, String pathPrefix) throws ApproovException {
+        checkNotEmpty("exclusion host", host);
+        checkNotEmpty("exclusion path prefix", pathPrefix);
+        builder.addExclusionPathPrefix(host.toLowerCase(Locale.US), pathPrefix);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Removes a URL path prefix on a host previously added to the exclusions.
+     *
+     * @param host is the host name on which the path prefix is excluded
+     * @param pathPrefix is the path prefix to be removed from the exclusions
+     * @return this editor
+     * @throws ApproovException if the host is invalid
+     */
+    public ApproovConfigEditor removeExclusionPathPrefix(String host, String pathPrefix) throws ApproovException {
+        checkNotEmpty("exclusion host", host);
+        builder.removeExclusionPathPrefix(host.toLowerCase(Locale.US), pathPrefix);
+        modified = true;
+        return this;
+    }
+
+    /**
+     * Determines if any changes have been made.
+     *
+     * @return true if the configuration has been modified
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Gets the builder holding the changed configuration.
+     *
+     * @return the builder for the configuration
+     */
+    ApproovConfig.Builder getBuilder() {
+        return builder;
+    }
+
+    /**
+     * Checks that a value that is required is present.
+     *
+     * @param description describes the value for any exception
+     * @param value is the value to be checked
+     * @throws ApproovException if the value is null or empty
+     */
+    private static void checkNotEmpty(String description, String value) throws ApproovException {
+        if ((value == null) || value.isEmpty())
+            throw new ApproovException("IllegalArgument: " + description + " must not be empty");
+    }
+}
@@ -0,0 +1,32 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+// ApproovConfigurator makes a set of configuration changes as a single transaction using
+// ApproovService.configure. All of the changes made to the editor are validated before any are applied, and
+// they are then published together as one new configuration version.
+public interface ApproovConfigurator {
+
+    /**
+     * Called to make the configuration changes. If this throws then none of the changes are applied.
+     *
+     * @param editor is the editor on which the changes should be made
+     * @throws ApproovException if any of the changes are invalid
+     */
+    void configure(ApproovConfigEditor editor) throws ApproovException;
+}
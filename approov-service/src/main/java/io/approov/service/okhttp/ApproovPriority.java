@@ -0,0 +1,44 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import okhttp3.Request;
+
+// ApproovPriority is the priority with which the Approov processing of a request is performed when an
+// attestation executor is in use, as set with ApproovService.setAttestationExecutor. A request may be given a
+// priority by tagging it, for instance:
+// request.newBuilder().tag(ApproovPriority.class, ApproovPriority.BACKGROUND).build()
+// Requests that are not tagged are treated as INTERACTIVE.
+public enum ApproovPriority {
+    // requests that a user is waiting for, which are processed ahead of any background requests
+    INTERACTIVE,
+
+    // requests made in the background, such as for data synchronization
+    BACKGROUND;
+
+    /**
+     * Gets the priority of a request from its tag.
+     *
+     * @param request is the request whose priority is required
+     * @return the priority of the request
+     */
+    static ApproovPriority of(Request request) {
+        ApproovPriority priority = request.tag(ApproovPriority.class);
+        return (priority == null) ? INTERACTIVE : priority;
+    }
+}
@@ -0,0 +1,45 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import okhttp3.Request;
+
+// ApproovRequestCallback receives the outcome of asynchronously preparing a request with Approov using
+// ApproovService.prepareRequest. The callback may be made on a thread internal to the Approov SDK so
+// it should not perform any lengthy operations.
+public interface ApproovRequestCallback {
+
+    /**
+     * Called when the request has been prepared with any Approov token and substitutions. The prepared
+     * request should be sent promptly using a client obtained from ApproovService.getOkHttpClient, and
+     * it will not be processed again by the Approov interceptor.
+     *
+     * @param request is the prepared request
+     */
+    void onRequestPrepared(Request request);
+
+    /**
+     * Called if the request could not be prepared with Approov. This will be ApproovRejectionException if
+     * the app has failed Approov checks or ApproovNetworkException for networking issues where a user
+     * initiated retry of the operation should be allowed.
+     *
+     * @param request is the original request that was being prepared
+     * @param e is the exception describing the failure
+     */
+    void onRequestFailure(Request request, ApproovException e);
+}
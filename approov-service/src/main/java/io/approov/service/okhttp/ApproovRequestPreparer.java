@@ -0,0 +1,300 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.Request;
+
+// ApproovRequestPreparer performs the same processing as the ApproovTokenInterceptor but without blocking
+// the calling thread. The token and any secure strings needed for substitutions are obtained using the
+// callback based fetches, with the prepared request being provided to an ApproovRequestCallback.
+final class ApproovRequestPreparer implements ApproovSdk.Callback {
+    // logging tag
+    private static final String TAG = "ApproovPreparer";
+
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // interceptor whose processing is used to prepare the request
+    private final ApproovTokenInterceptor interceptor;
+
+    // configuration snapshot used for all of the processing of the request
+    private final ApproovConfig config;
+
+    // callback to receive the outcome of the preparation
+    private final ApproovRequestCallback callback;
+
+    // the original request being prepared
+    private final Request originalRequest;
+
+    // builder holding the changes to the request, or null if there are none
+    private Request.Builder requestBuilder;
+
+    // results for the secure strings needed for substitutions, mapped from their keys
+    private final Map<String, ApproovSdk.Result> secureStrings = new HashMap<>();
+
+    // number of secure string fetches that are still outstanding
+    private int pendingSecureStrings;
+
+    // generation of the substitution cache when the secure string fetches were started
+    private long cacheGeneration;
+
+    // true once the outcome has been provided to the callback
+    private boolean completed;
+
+    /**
+     * Constructs a preparer for a request.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param interceptor is the interceptor that should be used to process the request
+     * @param config is the configuration to be applied to the request
+     * @param request is the request to be prepared
+     * @param callback is the callback to receive the outcome
+     */
+    ApproovRequestPreparer(ApproovSdk sdk, ApproovTokenInterceptor interceptor, ApproovConfig config,
+                           Request request, ApproovRequestCallback callback) {
+        this.sdk = sdk;
+        this.interceptor = interceptor;
+        this.config = config;
+        this.originalRequest = request;
+        this.callback = callback;
+    }
+
+    /**
+     * Determines if a request has already been prepared and should therefore not be processed
+     * again by the interceptor.
+     *
+     * @param request is the request to be checked
+     * @return true if the request has been prepared
+     */
+    static boolean isPrepared(Request request) {
+        return request.tag(Prepared.class) != null;
+    }
+
+    /**
+     * Starts the preparation of the request. The outcome is always provided to the callback.
+     */
+    void start() {
+        // excluded requests need no preparation
+        if (interceptor.isExcluded(config, originalRequest)) {
+            succeed(null);
+            return;
+        }
+
+        // use any cached result for a host known not to be protected
+        String host = originalRequest.url().host();
+        ApproovSdk.Result cachedResult = interceptor.getCachedHostResult(host);
+        if (cachedResult != null) {
+            processTokenResult(cachedResult);
+            return;
+        }
+
+        // update any token binding and start the token fetch, catching any exceptions the SDK might throw
+        try {
+            interceptor.updateDataHash(config, originalRequest);
+            AttestationExecutor executor = ApproovService.getAttestationExecutor();
+            if (executor != null)
+                executor.fetchApproovToken(ApproovPriority.of(originalRequest), sdk, this, host);
+            else
+                sdk.fetchApproovToken(this, host);
+        }
+        catch (IllegalStateException e) {
+            fail(new ApproovException("IllegalState: " + e.getMessage()));
+        }
+        catch (IllegalArgumentException e) {
+            fail(new ApproovException("IllegalArgument: " + e.getMessage()));
+        }
+    }
+
+    @Override
+    public void approovCallback(ApproovSdk.Result approovResults) {
+        interceptor.recordHostResult(originalRequest.url().host(), approovResults);
+        processTokenResult(approovResults);
+    }
+
+    /**
+     * Processes the result of the token fetch for the request, starting any secure string fetches needed
+     * for substitutions.
+     *
+     * @param approovResults is the result of the token fetch
+     */
+    private void processTokenResult(ApproovSdk.Result approovResults) {
+        Set<String> keys;
+        try {
+            requestBuilder = interceptor.addApproovToken(config, originalRequest, null, approovResults);
+            if (!interceptor.shouldSubstitute(approovResults)) {
+                succeed(requestBuilder);
+                return;
+            }
+            keys = interceptor.getSubstitutionKeys(config, originalRequest);
+        }
+        catch (ApproovException e) {
+            fail(e);
+            return;
+        }
+
+        // use any cached results for the secure strings needed
+        SubstitutionCache cache = ApproovService.getSubstitutionCache();
+        Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            ApproovSdk.Result cachedResult = cache.get(key);
+            if (cachedResult != null) {
+                synchronized (this) {
+                    secureStrings.put(key, cachedResult);
+                }
+                iterator.remove();
+            }
+        }
+
+        // start fetches for all of the other secure strings needed, which should normally use cached results
+        if (keys.isEmpty()) {
+            substitute();
+            return;
+        }
+        synchronized (this) {
+            pendingSecureStrings = keys.size();
+            cacheGeneration = cache.getGeneration();
+        }
+        AttestationExecutor executor = ApproovService.getAttestationExecutor();
+        for (String key: keys) {
+            try {
+                if (executor != null)
+                    executor.fetchSecureString(ApproovPriority.of(originalRequest), sdk, new SecureStringCallback(key),
+                            key, null);
+                else
+                    sdk.fetchSecureString(new SecureStringCallback(key), key, null);
+            }
+            catch (IllegalStateException e) {
+                fail(new ApproovException("IllegalState: " + e.getMessage()));
+                return;
+            }
+            catch (IllegalArgumentException e) {
+                fail(new ApproovException("IllegalArgument: " + e.getMessage()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the result of a secure string fetch, performing the substitutions once all of the
+     * fetches have completed.
+     *
+     * @param key is the secure string key that was fetched
+     * @param approovResults is the result of the fetch
+     */
+    private void secureStringFetched(String key, ApproovSdk.Result approovResults) {
+        synchronized (this) {
+            ApproovService.getSubstitutionCache().put(key, approovResults, cacheGeneration);
+            secureStrings.put(key, approovResults);
+            pendingSecureStrings--;
+            if (pendingSecureStrings != 0)
+                return;
+        }
+        substitute();
+    }
+
+    /**
+     * Performs the substitutions for the request using the fetched secure strings and provides the
+     * outcome to the callback.
+     */
+    private void substitute() {
+        Request.Builder substituted;
+        try {
+            synchronized (this) {
+                substituted = interceptor.substituteHeadersAndQueryParams(config, originalRequest, requestBuilder,
+                        secureStrings);
+            }
+        }
+        catch (ApproovException e) {
+            fail(e);
+            return;
+        }
+        succeed(substituted);
+    }
+
+    /**
+     * Provides a successfully prepared request to the callback, marking it as prepared so that it is
+     * not processed again by the interceptor.
+     *
+     * @param prepared is the builder holding the changes to the request, or null if there are none
+     */
+    private void succeed(Request.Builder prepared) {
+        if (!markCompleted())
+            return;
+        Log.d(TAG, "Prepared request for " + originalRequest.url().host());
+        if (prepared == null)
+            prepared = originalRequest.newBuilder();
+        callback.onRequestPrepared(prepared.tag(Prepared.class, Prepared.INSTANCE).build());
+    }
+
+    /**
+     * Provides a failure to the callback.
+     *
+     * @param e is the exception describing the failure
+     */
+    private void fail(ApproovException e) {
+        if (!markCompleted())
+            return;
+        Log.e(TAG, "Request preparation for " + originalRequest.url().host() + " failed: " + e.getMessage());
+        callback.onRequestFailure(originalRequest, e);
+    }
+
+    /**
+     * Marks the preparation as completed, so that the callback is only made once even if further
+     * secure string fetches complete after a failure.
+     *
+     * @return true if the preparation was not already completed
+     */
+    private synchronized boolean markCompleted() {
+        if (completed)
+            return false;
+        completed = true;
+        return true;
+    }
+
+    // SecureStringCallback receives the result of one of the secure string fetches for the request
+    private final class SecureStringCallback implements ApproovSdk.Callback {
+        // the key of the secure string being fetched
+        private final String key;
+
+        SecureStringCallback(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void approovCallback(ApproovSdk.Result approovResults) {
+            secureStringFetched(key, approovResults);
+        }
+    }
+
+    // Prepared is the tag type used to mark requests that have already been prepared
+    static final class Prepared {
+        // the single tag instance
+        static final Prepared INSTANCE = new Prepared();
+
+        private Prepared() {
+        }
+    }
+}
@@ -0,0 +1,229 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.List;
+import java.util.Map;
+
+// ApproovSdk is the facade through which the service accesses the Approov SDK. All SDK operations used by
+// the service and its interceptors go through this interface, using types defined here rather than those
+// of the SDK itself. This allows the service to be driven by a stand-in implementation, such as the
+// SimulatedApproovSdk in the benchmark module, so that the interceptor can be load tested and benchmarked on
+// a plain JVM.
+interface ApproovSdk {
+
+    // Status is the status of a fetch, mirroring the statuses provided by the Approov SDK
+    enum Status {
+        SUCCESS,
+        NO_NETWORK,
+        MITM_DETECTED,
+        POOR_NETWORK,
+        NO_APPROOV_SERVICE,
+        BAD_URL,
+        UNKNOWN_URL,
+        UNPROTECTED_URL,
+        NO_NETWORK_PERMISSION,
+        MISSING_LIB_DEPENDENCY,
+        INTERNAL_ERROR,
+        REJECTED,
+        DISABLED,
+        UNKNOWN_KEY,
+        BAD_KEY,
+        BAD_PAYLOAD
+    }
+
+    // Callback receives the result of an asynchronous fetch
+    interface Callback {
+
+        /**
+         * Called when an asynchronous fetch has completed.
+         *
+         * @param result is the result of the fetch
+         */
+        void approovCallback(Result result);
+    }
+
+    // Result holds the result of a token, secure string or custom JWT fetch
+    final class Result {
+        // status of the fetch
+        private final Status status;
+
+        // the token or custom JWT, or empty if none was obtained
+        private final String token;
+
+        // any secure string that was obtained, or null if none
+        private final String secureString;
+
+        // any ARC associated with a rejection
+        private final String arc;
+
+        // any rejection reasons associated with a rejection
+        private final String rejectionReasons;
+
+        // a version of the token that is safe to log
+        private final String loggableToken;
+
+        // true if the dynamic configuration has changed since the last fetch
+        private final boolean configChanged;
+
+        // true if the pins must be applied before proceeding
+        private final boolean forceApplyPins;
+
+        /**
+         * Constructs a fetch result.
+         *
+         * @param status is the status of the fetch
+         * @param token is the token or custom JWT, or empty if none was obtained
+         * @param secureString is any secure string that was obtained, or null if none
+         * @param arc is any ARC associated with a rejection
+         * @param rejectionReasons are any rejection reasons associated with a rejection
+         * @param loggableToken is a version of the token that is safe to log
+         * @param configChanged is true if the dynamic configuration has changed
+         * @param forceApplyPins is true if the pins must be applied before proceeding
+         */
+        Result(Status status, String token, String secureString, String arc, String rejectionReasons,
+               String loggableToken, boolean configChanged, boolean forceApplyPins) {
+            this.status = status;
+            this.token = token;
+            this.secureString = secureString;
+            this.arc = arc;
+            this.rejectionReasons = rejectionReasons;
+            this.loggableToken = loggableToken;
+            this.configChanged = configChanged;
+            this.forceApplyPins = forceApplyPins;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        String getSecureString() {
+            return secureString;
+        }
+
+        String getARC() {
+            return arc;
+        }
+
+        String getRejectionReasons() {
+            return rejectionReasons;
+        }
+
+        String getLoggableToken() {
+            return loggableToken;
+        }
+
+        boolean isConfigChanged() {
+            return configChanged;
+        }
+
+        boolean isForceApplyPins() {
+            return forceApplyPins;
+        }
+    }
+
+    /**
+     * Sets a development key for the app.
+     *
+     * @param devKey is the development key to be used
+     */
+    void setDevKey(String devKey);
+
+    /**
+     * Fetches an Approov token for the domain of the given URL, waiting for the result.
+     *
+     * @param url is the URL or domain for the token fetch
+     * @return the result of the fetch
+     */
+    Result fetchApproovTokenAndWait(String url);
+
+    /**
+     * Fetches an Approov token for the domain of the given URL asynchronously.
+     *
+     * @param callback is the callback to receive the result
+     * @param url is the URL or domain for the token fetch
+     */
+    void fetchApproovToken(Callback callback, String url);
+
+    /**
+     * Fetches a secure string, waiting for the result.
+     *
+     * @param key is the secure string key
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     * @return the result of the fetch
+     */
+    Result fetchSecureStringAndWait(String key, String newDef);
+
+    /**
+     * Fetches a secure string asynchronously.
+     *
+     * @param callback is the callback to receive the result
+     * @param key is the secure string key
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     */
+    void fetchSecureString(Callback callback, String key, String newDef);
+
+    /**
+     * Fetches a custom JWT with the given payload, waiting for the result.
+     *
+     * @param payload is the marshaled JSON object for the claims to be included
+     * @return the result of the fetch
+     */
+    Result fetchCustomJWTAndWait(String payload);
+
+    /**
+     * Gets the pins for all of the protected domains.
+     *
+     * @param pinType is the type of pins required, such as "public-key-sha256"
+     * @return map of domains to their pins
+     */
+    Map<String, List<String>> getPins(String pinType);
+
+    /**
+     * Fetches the current dynamic configuration, clearing any indication that it has changed.
+     *
+     * @return the dynamic configuration
+     */
+    String fetchConfig();
+
+    /**
+     * Sets the data whose hash is to be included in subsequently fetched tokens.
+     *
+     * @param data is the data to be hashed and set in the token
+     */
+    void setDataHashInToken(String data);
+
+    /**
+     * Gets the signature for the given message.
+     *
+     * @param message is the message whose content is to be signed
+     * @return the base64 encoded message signature, or null if none is available
+     */
+    String getMessageSignature(String message);
+
+    /**
+     * Gets the device ID used by Approov.
+     *
+     * @return the device ID
+     */
+    String getDeviceID();
+}
@@ -20,70 +20,101 @@ package io.approov.service.okhttp;
 import android.util.Log;
 import android.content.Context;
 
-import com.criticalblue.approovsdk.Approov;
-
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import okhttp3.CertificatePinner;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.Response;
 
 // ApproovService provides a mediation layer to the Approov SDK itself
 public class ApproovService {
     // logging tag
     private static final String TAG = "ApproovService";
 
-    // default header that will be added to Approov enabled requests
-    private static final String APPROOV_TOKEN_HEADER = "Approov-Token";
-
-    // default prefix to be added before the Approov token by default
-    private static final String APPROOV_TOKEN_PREFIX = "";
-
     // name for the default builder
     private static final String DEFAULT_BUILDER_NAME = "_default";
 
     // true if the Approov SDK initialized okay
-    private static boolean isInitialized = false;
-
-    // true if the interceptor should proceed on network failures and not add an
-    // Approov token
-    private static boolean proceedOnNetworkFail = false;
+    private static volatile boolean isInitialized = false;
 
     // builders to be used for new OkHttp clients where each can be named
-    private static Map<String, OkHttpClient.Builder> okHttpBuilders = null;
+    private static final ConcurrentHashMap<String, OkHttpClient.Builder> okHttpBuilders = new ConcurrentHashMap<>();
+
+    // base OkHttpClients built from each of the named builders, from which the Approov OkHttpClients are
+    // derived so that their connection pools, dispatchers and TLS session caches survive rebuilds
+    private static final ConcurrentHashMap<String, OkHttpClient> baseClients = new ConcurrentHashMap<>();
+
+    // cached OkHttpClients to use for each of the named builders, which are only valid if built in
+    // the current client generation
+    private static final ConcurrentHashMap<String, CachedClient> okHttpClients = new ConcurrentHashMap<>();
+
+    // locks held while building the OkHttpClient for each of the named builders
+    private static final ConcurrentHashMap<String, Object> builderLocks = new ConcurrentHashMap<>();
+
+    // generation of the cached OkHttpClients, incremented to invalidate all of them without locking
+    private static final AtomicLong clientGeneration = new AtomicLong();
+
+    // number of Approov OkHttpClients that have been built
+    private static final AtomicLong clientRebuildCount = new AtomicLong();
+
+    // number of Approov OkHttpClient rebuilds avoided because the configuration and pins were unchanged
+    private static final AtomicLong clientRebuildAvoidedCount = new AtomicLong();
+
+    // number of requests that were retried on a rebuilt client because the pins needed to be applied
+    private static final AtomicLong pinsRetryCount = new AtomicLong();
+
+    // total time in nanoseconds taken by requests that were retried because the pins needed to be applied
+    private static final AtomicLong pinsRetryNanos = new AtomicLong();
+
+    // current pins applied by clients using dynamic pinning, or null if they have not yet been obtained
+    private static final AtomicReference<PinSnapshot> dynamicPins = new AtomicReference<>();
 
-    // cached OkHttpClients to use for each of the named builders
-    private static Map<String, OkHttpClient> okHttpClients = null;
+    // current immutable configuration snapshot, replaced whenever the configuration is changed
+    private static volatile ApproovConfig config = ApproovConfig.createDefault();
 
-    // header to be used to send Approov tokens
-    private static String approovTokenHeader = null;
+    // facade used for all access to the Approov SDK
+    private static volatile ApproovSdk sdk = new AndroidApproovSdk();
 
-    // any prefix String to be added before the transmitted Approov token
-    private static String approovTokenPrefix = null;
+    // coalesces concurrent token fetches for the same host across all interceptors
+    private static volatile TokenFetchCoalescer tokenFetchCoalescer = null;
 
-    // any header to be used for binding in Approov tokens or null if not set
-    private static String bindingHeader = null;
+    // cache of hosts known not to be protected by Approov, shared across all interceptors
+    private static volatile HostStatusCache hostStatusCache = null;
 
-    // map of headers that should have their values substituted for secure strings, mapped to their
-    // required prefixes
-    private static Map<String, String> substitutionHeaders = null;
+    // lock held while the data hash for token binding is changed in the SDK
+    private static final Object dataHashLock = new Object();
 
-    // set of query parameters that may be substituted, specified by the key name
-    private static Set<String> substitutionQueryParams = null;
+    // the data most recently set for the token binding data hash in the SDK, or null if none has been set
+    private static volatile String lastDataHashData = null;
 
-    // set of URL regexs that should be excluded from any Approov protection, mapped to the compiled Pattern
-    private static Map<String, Pattern> exclusionURLRegexs = null;
+    // executor on which attestations are run, or null if they are run using the SDK directly
+    private static volatile AttestationExecutor attestationExecutor = null;
+
+    // cache of the secure strings used for substitutions
+    private static volatile SubstitutionCache substitutionCache = null;
+
+    // prefetches tokens and secure strings for recently used hosts and keys
+    private static volatile Prefetcher prefetcher = null;
+
+    // refreshes tokens in the background ahead of their expiry, or null if this is not enabled
+    private static volatile TokenRefresher tokenRefresher = null;
+
+    // handles dynamic configuration changes in the background
+    private static volatile ConfigChangeHandler configChangeHandler = null;
 
     /**
      * Construction is disallowed as this is a static only class.
@@ -97,31 +128,126 @@ public class ApproovService {
      * @param context the Application context
      * @param config the configuration string, or empty for no SDK initialization
      */
-    public static void initialize(Context context, String config) {
+    public static synchronized void initialize(Context context, String config) {
         // setup for creating clients
-        isInitialized = false;
-        proceedOnNetworkFail = false;
-        okHttpBuilders = new HashMap<>();
-        okHttpBuilders.put(DEFAULT_BUILDER_NAME, new OkHttpClient.Builder());
-        okHttpClients =  new HashMap<>();
-        approovTokenHeader = APPROOV_TOKEN_HEADER;
-        approovTokenPrefix = APPROOV_TOKEN_PREFIX;
-        bindingHeader = null;
-        substitutionHeaders = new HashMap<>();
-        substitutionQueryParams = new HashSet<>();
-        exclusionURLRegexs = new HashMap<>();
+        AndroidApproovSdk androidSdk = new AndroidApproovSdk();
+        reset(androidSdk);
 
         // initialize the Approov SDK
         try {
-            if (config.length() != 0)
-                Approov.initialize(context, config, "auto", "init-fetch");
-            Approov.setUserProperty("approov-service-okhttp");
+            androidSdk.initialize(context, config);
             isInitialized = true;
         } catch (IllegalArgumentException e) {
             Log.e(TAG, "Approov initialization failed: " + e.getMessage());
         }
     }
 
+    /**
+     * Initializes the ApproovService to use the given implementation of the Approov SDK facade rather
+     * than the Approov SDK itself. This allows the service to be run with a stand-in SDK, such as the
+     * SimulatedApproovSdk in the benchmark module, for load testing and benchmarking off-device.
+     *
+     * @param approovSdk is the SDK facade implementation to be used
+     */
+    static synchronized void initialize(ApproovSdk approovSdk) {
+        reset(approovSdk);
+        isInitialized = true;
+    }
+
+    /**
+     * Resets the ApproovService state ready for initialization.
+     *
+     * @param approovSdk is the SDK facade implementation to be used
+     */
+    private static void reset(ApproovSdk approovSdk) {
+        isInitialized = false;
+        sdk = approovSdk;
+        okHttpBuilders.clear();
+        okHttpBuilders.put(DEFAULT_BUILDER_NAME, new OkHttpClient.Builder());
+        baseClients.clear();
+        okHttpClients.clear();
+        clientRebuildCount.set(0);
+        clientRebuildAvoidedCount.set(0);
+        dynamicPins.set(null);
+        pinsRetryCount.set(0);
+        pinsRetryNanos.set(0);
+        config = ApproovConfig.createDefault();
+        tokenFetchCoalescer = new TokenFetchCoalescer(approovSdk);
+        hostStatusCache = new HostStatusCache();
+        prefetcher = new Prefetcher(approovSdk);
+        substitutionCache = new SubstitutionCache();
+        lastDataHashData = null;
+        if (attestationExecutor != null)
+            attestationExecutor.shutdown();
+        attestationExecutor = null;
+        if (tokenRefresher != null)
+            tokenRefresher.shutdown();
+        tokenRefresher = null;
+        if (configChangeHandler != null)
+            configChangeHandler.shutdown();
+        configChangeHandler = new ConfigChangeHandler(approovSdk);
+        clearOkHttpClient();
+    }
+
+    /**
+     * Publishes a new configuration snapshot built from the given builder. The interceptors read the
+     * current snapshot for each request, so most changes apply immediately to existing OkHttpClients. The
+     * cached OkHttpClients are only invalidated if the change affects how they are built. The cached secure
+     * strings for substitutions are always discarded, as the change may affect which are used. This must only
+     * be called while holding the ApproovService class lock so that concurrent configuration changes are not
+     * lost.
+     *
+     * @param builder is the builder holding the changed configuration
+     */
+    private static void publishConfig(ApproovConfig.Builder builder) {
+        ApproovConfig previousConfig = config;
+        config = builder.build(previousConfig.getVersion() + 1);
+        if (config.isDynamicPinning() != previousConfig.isDynamicPinning())
+            clearOkHttpClient();
+        SubstitutionCache cache = substitutionCache;
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Gets the current configuration snapshot.
+     *
+     * @return the current configuration
+     */
+    static ApproovConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Applies a set of configuration changes as a single transaction. The configurator is called with an
+     * editor on which any number of changes may be made, corresponding to the individual setters. All of the
+     * changes are validated, and regular expressions compiled, as they are made. If the configurator
+     * completes normally then the changes are published together as a single new configuration, requiring the
+     * OkHttp clients to be invalidated at most once. If it throws then none of the changes are applied. This
+     * should be preferred over many individual setter calls when configuring the service on startup, for
+     * instance:
+     * <pre>
+     * ApproovService.configure(editor -&gt; editor
+     *         .addSubstitutionHeader("Api-Key", null)
+     *         .addExclusionHost("cdn.example.com"));
+     * </pre>
+     *
+     * @param configurator is called to make the configuration changes
+     * @throws ApproovException if any of the changes are invalid
+     */
+    public static synchronized void configure(ApproovConfigurator configurator) throws ApproovException {
+        if (!isInitialized) {
+            Log.e(TAG, "Cannot configure as not initialized");
+            return;
+        }
+        ApproovConfigEditor editor = new ApproovConfigEditor(config.newBuilder());
+        configurator.configure(editor);
+        if (editor.isModified()) {
+            Log.d(TAG, "configure");
+            publishConfig(editor.getBuilder());
+        }
+    }
+
     /**
      * Sets a flag indicating if the network interceptor should proceed anyway if it is
      * not possible to obtain an Approov token due to a networking failure. If this is set
@@ -135,8 +261,182 @@ public class ApproovService {
      */
     public static synchronized void setProceedOnNetworkFail(boolean proceed) {
         Log.d(TAG, "setProceedOnNetworkFail " + proceed);
-        proceedOnNetworkFail = proceed;
-        okHttpClients.clear();
+        publishConfig(config.newBuilder().setProceedOnNetworkFail(proceed));
+    }
+
+    /**
+     * Sets whether dynamic pinning should be used. Normally the pins are fixed in an OkHttpClient when
+     * it is built, so any pin update requires a new OkHttpClient to be obtained with getOkHttpClient and
+     * requests made with an out of date client fail with an ApproovNetworkException. With dynamic pinning
+     * the pins for each connection are instead checked against the latest pins when it is used. Pin updates
+     * then take effect immediately on existing OkHttpClients, without discarding their connection pools or
+     * failing requests. Connections that no longer match the pins are closed and the request fails.
+     *
+     * @param dynamic is true if dynamic pinning should be used
+     */
+    public static synchronized void setDynamicPinning(boolean dynamic) {
+        Log.d(TAG, "setDynamicPinning " + dynamic);
+        publishConfig(config.newBuilder().setDynamicPinning(dynamic));
+    }
+
+    /**
+     * Sets whether a request should be retried transparently if it cannot proceed because new pins need
+     * to be applied. Normally such a request fails with an ApproovNetworkException, and the app must obtain
+     * a new OkHttpClient with getOkHttpClient and resubmit it. If this is set then the OkHttpClient is rebuilt
+     * with the new pins and the request is replayed on it automatically, once only, with the response being
+     * provided to the original call. Note that any application interceptors that precede the Approov
+     * interceptor will also be run again for the replayed request. The replay is made on the OkHttpClient
+     * returned by getOkHttpClient, so any customizations made to the client with newBuilder, rather than to
+     * the builder given to setOkHttpClientBuilder, are not applied to it. The replay is subject to the timeout
+     * of the original call and is canceled if the original call is canceled. The frequency and cost of these
+     * retries may be obtained from getPinsRetryCount and getPinsRetryTimeMillis.
+     *
+     * @param retry is true if requests should be retried when the pins need to be applied
+     */
+    public static synchronized void setRetryOnForceApplyPins(boolean retry) {
+        Log.d(TAG, "setRetryOnForceApplyPins " + retry);
+        publishConfig(config.newBuilder().setRetryOnForceApplyPins(retry));
+    }
+
+    /**
+     * Sets up a dedicated executor on which the Approov token and secure string fetches needed for requests
+     * are run, with at most the given number running at once. This limits the number of concurrent
+     * attestations independently of the OkHttp dispatcher, and queued fetches are started in priority order
+     * so that those for INTERACTIVE requests run ahead of those for BACKGROUND requests (see ApproovPriority).
+     * The fetches made by precheck, fetchToken, fetchSecureString and fetchCustomJWT are also run on the
+     * executor, as INTERACTIVE fetches. Any previous executor completes the fetches already queued on it.
+     * Note that a request processed by the interceptor still occupies its OkHttp thread while waiting, so
+     * enqueue should be used for requests that must not hold a dispatcher thread during attestation. Queue
+     * metrics are available from getAttestationQueueLength, getAttestationTaskCount and
+     * getAttestationQueueWaitMillis.
+     *
+     * @param maxConcurrency is the maximum number of concurrent fetches, or 0 to run fetches using the SDK directly
+     */
+    public static synchronized void setAttestationExecutor(int maxConcurrency) {
+        Log.d(TAG, "setAttestationExecutor " + maxConcurrency);
+        // the previous executor is not shut down as requests may still be using it, but its threads exit once
+        // they are idle
+        attestationExecutor = (maxConcurrency > 0) ? new AttestationExecutor(maxConcurrency) : null;
+    }
+
+    /**
+     * Enables the refreshing of Approov tokens in the background ahead of their expiry. The expiry of the
+     * token last obtained for each recently used protected host is tracked, and a new token is fetched the
+     * given time before it expires. The SDK caches the refreshed token so that the next request to the host
+     * does not have to wait for a new fetch. Hosts that have not been requested for some minutes are no
+     * longer refreshed. This is not enabled by default as it results in additional attestations.
+     *
+     * @param leadTimeSeconds is the time before expiry at which tokens are refreshed, or 0 to disable refreshing
+     */
+    public static synchronized void setTokenRefreshLeadTime(int leadTimeSeconds) {
+        Log.d(TAG, "setTokenRefreshLeadTime " + leadTimeSeconds);
+        if (!isInitialized) {
+            Log.e(TAG, "setTokenRefreshLeadTime not initialized");
+            return;
+        }
+        TokenRefresher previousRefresher = tokenRefresher;
+        tokenRefresher = (leadTimeSeconds > 0) ? new TokenRefresher(sdk, leadTimeSeconds * 1000L) : null;
+        if (previousRefresher != null)
+            previousRefresher.shutdown();
+    }
+
+    /**
+     * Gets the number of token refreshes that have been started in the background ahead of token expiry.
+     *
+     * @return count of token refreshes since they were enabled
+     */
+    public static long getTokenRefreshCount() {
+        TokenRefresher refresher = tokenRefresher;
+        if (refresher == null)
+            return 0;
+        return refresher.getRefreshCount();
+    }
+
+    /**
+     * Gets the refresher for tokens.
+     *
+     * @return the token refresher, or null if tokens are not refreshed in the background
+     */
+    static TokenRefresher getTokenRefresher() {
+        return tokenRefresher;
+    }
+
+    /**
+     * Handles the result of a fetch made in the background rather than for a request. The SDK only reports
+     * a configuration change or that the pins need to be applied to a single fetch, so these must be acted
+     * upon here as no request will see them.
+     *
+     * @param approovResults is the result of the background fetch
+     */
+    static void onBackgroundFetch(ApproovSdk.Result approovResults) {
+        if (approovResults.isConfigChanged()) {
+            HostStatusCache cache = hostStatusCache;
+            if (cache != null)
+                cache.clear();
+            clearSubstitutionCache();
+            onConfigChanged();
+        }
+        else if (approovResults.getStatus() == ApproovSdk.Status.REJECTED)
+            clearSubstitutionCache();
+        else if (approovResults.isForceApplyPins())
+            refreshOkHttpClients();
+    }
+
+    /**
+     * Gets the executor on which attestations should be run.
+     *
+     * @return the attestation executor, or null if fetches should be made using the SDK directly
+     */
+    static AttestationExecutor getAttestationExecutor() {
+        return attestationExecutor;
+    }
+
+    /**
+     * Fetches an Approov token and waits for the result, running the fetch on any attestation executor so
+     * that it is subject to the same limit on concurrent attestations as the fetches for requests.
+     *
+     * @param url is the URL giving the domain for the token fetch
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the executor
+     */
+    private static ApproovSdk.Result fetchApproovTokenAndWait(String url) throws InterruptedIOException {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return sdk.fetchApproovTokenAndWait(url);
+        return executor.fetchApproovTokenAndWait(ApproovPriority.INTERACTIVE, sdk, url);
+    }
+
+    /**
+     * Fetches a secure string and waits for the result, running the fetch on any attestation executor so
+     * that it is subject to the same limit on concurrent attestations as the fetches for requests.
+     *
+     * @param key is the secure string key to be looked up
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     * @param priority is the priority of the fetch on any attestation executor
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the executor
+     */
+    static ApproovSdk.Result fetchSecureStringAndWait(String key, String newDef, ApproovPriority priority)
+            throws InterruptedIOException {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return sdk.fetchSecureStringAndWait(key, newDef);
+        return executor.fetchSecureStringAndWait(priority, sdk, key, newDef);
+    }
+
+    /**
+     * Fetches a custom JWT and waits for the result, running the fetch on any attestation executor so
+     * that it is subject to the same limit on concurrent attestations as the fetches for requests.
+     *
+     * @param payload is the marshaled JSON object for the claims to be included
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the executor
+     */
+    private static ApproovSdk.Result fetchCustomJWTAndWait(String payload) throws InterruptedIOException {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return sdk.fetchCustomJWTAndWait(payload);
+        return executor.fetchCustomJWTAndWait(ApproovPriority.INTERACTIVE, sdk, payload);
     }
 
     /**
@@ -152,7 +452,7 @@ public class ApproovService {
      */
     public static synchronized void setDevKey(String devKey) throws ApproovException {
         try {
-            Approov.setDevKey(devKey);
+            sdk.setDevKey(devKey);
             Log.d(TAG, "setDevKey");
         }
         catch (IllegalStateException e) {
@@ -173,9 +473,7 @@ public class ApproovService {
      */
     public static synchronized void setApproovHeader(String header, String prefix) {
         Log.d(TAG, "setApproovHeader " + header + ", " + prefix);
-        approovTokenHeader = header;
-        approovTokenPrefix = prefix;
-        okHttpClients.clear();
+        publishConfig(config.newBuilder().setApproovHeader(header, prefix));
     }
 
     /**
@@ -189,8 +487,7 @@ public class ApproovService {
      */
     public static synchronized void setBindingHeader(String header) {
         Log.d(TAG, "setBindingHeader " + header);
-        bindingHeader = header;
-        okHttpClients.clear();
+        publishConfig(config.newBuilder().setBindingHeader(header));
     }
 
     /**
@@ -198,7 +495,8 @@ public class ApproovService {
      * means that if the header is present then the value will be used as a key to look up a
      * secure string value which will be substituted into the header value instead. This allows
      * easy migration to the use of secure strings. Note that this function should be called on initialization
-     * rather than for every request as it will require a new OkHttpClient to be built. A required
+     * rather than for every request as it publishes a new configuration, although existing OkHttpClients
+     * pick up the change without needing to be rebuilt. A required
      * prefix may be specified to deal with cases such as the use of "Bearer " prefixed before values
      * in an authorization header.
      *
@@ -208,11 +506,7 @@ public class ApproovService {
     public static synchronized void addSubstitutionHeader(String header, String requiredPrefix) {
         if (isInitialized) {
             Log.d(TAG, "addSubstitutionHeader " + header + ", " + requiredPrefix);
-            if (requiredPrefix == null)
-                substitutionHeaders.put(header, "");
-            else
-                substitutionHeaders.put(header, requiredPrefix);
-            okHttpClients.clear();
+            publishConfig(config.newBuilder().addSubstitutionHeader(header, requiredPrefix));
         }
     }
 
@@ -224,8 +518,7 @@ public class ApproovService {
     public static synchronized void removeSubstitutionHeader(String header) {
         if (isInitialized) {
             Log.d(TAG, "removeSubstitutionHeader " + header);
-            substitutionHeaders.remove(header);
-            okHttpClients.clear();
+            publishConfig(config.newBuilder().removeSubstitutionHeader(header));
         }
     }
 
@@ -234,16 +527,15 @@ public class ApproovService {
      * This means that if the query parameter is present in a URL then the value will be used as a
      * key to look up a secure string value which will be substituted as the query parameter value
      * instead. This allows easy migration to the use of secure strings. Note that this function
-     * should be called on initialization rather than for every request as it will require a new
-     * OkHttpClient to be built.
+     * should be called on initialization rather than for every request as it publishes a new
+     * configuration, although existing OkHttpClients pick up the change without needing to be rebuilt.
      *
      * @param key is the query parameter key name to be added for substitution
      */
     public static synchronized void addSubstitutionQueryParam(String key) {
         if (isInitialized) {
             Log.d(TAG, "addSubstitutionQueryParam " + key);
-            substitutionQueryParams.add(key);
-            okHttpClients.clear();
+            publishConfig(config.newBuilder().addSubstitutionQueryParam(key));
         }
     }
 
@@ -255,8 +547,7 @@ public class ApproovService {
     public static synchronized void removeSubstitutionQueryParam(String key) {
         if (isInitialized) {
             Log.d(TAG, "removeSubstitutionQueryParam " + key);
-            substitutionQueryParams.remove(key);
-            okHttpClients.clear();
+            publishConfig(config.newBuilder().removeSubstitutionQueryParam(key));
         }
     }
 
@@ -278,8 +569,7 @@ public class ApproovService {
         if (isInitialized) {
             try {
                 Pattern pattern = Pattern.compile(urlRegex);
-                exclusionURLRegexs.put(urlRegex, pattern);
-                okHttpClients.clear();
+                publishConfig(config.newBuilder().addExclusionURLRegex(urlRegex, pattern));
                 Log.d(TAG, "addExclusionURLRegex " + urlRegex);
             } catch (PatternSyntaxException e) {
                 Log.e(TAG, "addExclusionURLRegex " + urlRegex + " error: " + e.getMessage());
@@ -295,20 +585,157 @@ public class ApproovService {
     public static synchronized void removeExclusionURLRegex(String urlRegex) {
         if (isInitialized) {
             Log.d(TAG, "removeExclusionURLRegex " + urlRegex);
-            exclusionURLRegexs.remove(urlRegex);
-            okHttpClients.clear();
+            publishConfig(config.newBuilder().removeExclusionURLRegex(urlRegex));
+        }
+    }
+
+    /**
+     * Adds a host to be excluded from any Approov protection. All requests to exactly this host will
+     * not be subject to any Approov protection. This is much more efficient than an equivalent exclusion
+     * URL regular expression as the exclusion is determined with a simple lookup on the host. The same
+     * EXTREME CAUTION must be used as described for addExclusionURLRegex.
+     *
+     * @param host is the host name to be excluded
+     */
+    public static synchronized void addExclusionHost(String host) {
+        if (isInitialized) {
+            Log.d(TAG, "addExclusionHost " + host);
+            publishConfig(config.newBuilder().addExclusionHost(host.toLowerCase(Locale.US)));
+        }
+    }
+
+    /**
+     * Removes a host previously added using addExclusionHost.
+     *
+     * @param host is the host name to be removed from the exclusions
+     */
+    public static synchronized void removeExclusionHost(String host) {
+        if (isInitialized) {
+            Log.d(TAG, "removeExclusionHost " + host);
+            publishConfig(config.newBuilder().removeExclusionHost(host.toLowerCase(Locale.US)));
+        }
+    }
+
+    /**
+     * Adds a host suffix to be excluded from any Approov protection. Requests to a host that is equal
+     * to the suffix, or that is a subdomain of it, will not be subject to any Approov protection. For
+     * instance "example.com" excludes "example.com" and "cdn.example.com" but not "myexample.com". The
+     * same EXTREME CAUTION must be used as described for addExclusionURLRegex.
+     *
+     * @param hostSuffix is the domain to be excluded along with all of its subdomains
+     */
+    public static synchronized void addExclusionHostSuffix(String hostSuffix) {
+        if (isInitialized) {
+            Log.d(TAG, "addExclusionHostSuffix " + hostSuffix);
+            publishConfig(config.newBuilder().addExclusionHostSuffix(ExclusionMatcher.normalizeHostSuffix(hostSuffix)));
+        }
+    }
+
+    /**
+     * Removes a host suffix previously added using addExclusionHostSuffix.
+     *
+     * @param hostSuffix is the domain to be removed from the exclusions
+     */
+    public static synchronized void removeExclusionHostSuffix(String hostSuffix) {
+        if (isInitialized) {
+            Log.d(TAG, "removeExclusionHostSuffix " + hostSuffix);
+            publishConfig(config.newBuilder().removeExclusionHostSuffix(ExclusionMatcher.normalizeHostSuffix(hostSuffix)));
+        }
+    }
+
+    /**
+     * Adds a URL path prefix on a host to be excluded from any Approov protection. Requests to exactly
+     * the given host whose encoded URL path starts with the prefix will not be subject to any Approov
+     * protection. The same EXTREME CAUTION must be used as described for addExclusionURLRegex.
+     *
+     * @param host is the host name on which the path prefix is excluded
+     * @param pathPrefix is the path prefix to be excluded, such as "/static/"
+     */
+    public static synchronized void addExclusionPathPrefix(String host, String pathPrefix) {
+        if (isInitialized) {
+            Log.d(TAG, "addExclusionPathPrefix " + host + ", " + pathPrefix);
+            publishConfig(config.newBuilder().addExclusionPathPrefix(host.toLowerCase(Locale.US), pathPrefix));
+        }
+    }
+
+    /**
+     * Removes a URL path prefix on a host previously added using addExclusionPathPrefix.
+     *
+     * @param host is the host name on which the path prefix is excluded
+     * @param pathPrefix is the path prefix to be removed from the exclusions
+     */
+    public static synchronized void removeExclusionPathPrefix(String host, String pathPrefix) {
+        if (isInitialized) {
+            Log.d(TAG, "removeExclusionPathPrefix " + host + ", " + pathPrefix);
+            publishConfig(config.newBuilder().removeExclusionPathPrefix(host.toLowerCase(Locale.US), pathPrefix));
         }
     }
 
     /**
      * Prefetches in the background to lower the effective latency of a subsequent token fetch or
      * secure string fetch by starting the operation earlier so the subsequent fetch may be able to
-     * use cached data.
+     * use cached data. Tokens are fetched for the protected hosts and secure strings that have been
+     * used most recently, or for a placeholder domain if none have been used yet.
      */
-    public static synchronized void prefetch() {
+    public static void prefetch() {
         if (isInitialized)
-            // fetch an Approov token using a placeholder domain
-            Approov.fetchApproovToken(new PrefetchCallbackHandler(), "approov.io");
+            prefetcher.prefetch();
+    }
+
+    /**
+     * Notifies that the app has been resumed, which prefetches in the background so that the first
+     * requests made after resuming are less likely to have to wait for a token or secure string
+     * fetch. This should be called from the app's lifecycle callbacks. Prefetches are rate limited so
+     * frequent calls have little cost.
+     */
+    public static void notifyAppResumed() {
+        if (isInitialized)
+            prefetcher.trigger("app resumed");
+    }
+
+    /**
+     * Notifies that network connectivity has become available, which prefetches in the background so
+     * that any fetches that could not be made while the network was unavailable are made before they
+     * are needed by requests. This should be called from the app's connectivity callbacks. Prefetches
+     * are rate limited so frequent calls have little cost.
+     */
+    public static void notifyNetworkAvailable() {
+        if (isInitialized)
+            prefetcher.trigger("network available");
+    }
+
+    /**
+     * Gets the number of prefetches that have been made, either explicitly or due to notifications.
+     *
+     * @return count of prefetches
+     */
+    public static long getPrefetchCount() {
+        Prefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher == null)
+            return 0;
+        return currentPrefetcher.getPrefetchCount();
+    }
+
+    /**
+     * Gets the number of prefetches due to notifications that were skipped because a prefetch had
+     * been made too recently.
+     *
+     * @return count of skipped prefetches
+     */
+    public static long getPrefetchSkippedCount() {
+        Prefetcher currentPrefetcher = prefetcher;
+        if (currentPrefetcher == null)
+            return 0;
+        return currentPrefetcher.getSkippedCount();
+    }
+
+    /**
+     * Gets the prefetcher, which records the hosts and secure strings used.
+     *
+     * @return the prefetcher, or null if not initialized
+     */
+    static Prefetcher getPrefetcher() {
+        return prefetcher;
     }
 
     /**
@@ -324,9 +751,9 @@ public class ApproovService {
      */
     public static void precheck() throws ApproovException {
         // try and fetch a non-existent secure string in order to check for a rejection
-        Approov.TokenFetchResult approovResults;
+        ApproovSdk.Result approovResults;
         try {
-            approovResults = Approov.fetchSecureStringAndWait("precheck-dummy-key", null);
+            approovResults = fetchSecureStringAndWait("precheck-dummy-key", null, ApproovPriority.INTERACTIVE);
             Log.d(TAG, "precheck: " + approovResults.getStatus().toString());
         }
         catch (IllegalStateException e) {
@@ -335,21 +762,24 @@ public class ApproovService {
         catch (IllegalArgumentException e) {
             throw new ApproovException("IllegalArgument: " + e.getMessage());
         }
+        catch (InterruptedIOException e) {
+            throw new ApproovException("Interrupted: " + e.getMessage());
+        }
 
         // process the returned Approov status
-        if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
+        if (approovResults.getStatus() == ApproovSdk.Status.REJECTED)
             // if the request is rejected then we provide a special exception with additional information
             throw new ApproovRejectionException("precheck: " + approovResults.getStatus().toString() + ": " +
                     approovResults.getARC() + " " + approovResults.getRejectionReasons(),
                     approovResults.getARC(), approovResults.getRejectionReasons());
-        else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED))
+        else if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED))
             // we are unable to get the secure string due to network conditions so the request can
             // be retried by the user later
             throw new ApproovNetworkException("precheck: " + approovResults.getStatus().toString());
-        else if ((approovResults.getStatus() != Approov.TokenFetchStatus.SUCCESS) &&
-                (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY))
+        else if ((approovResults.getStatus() != ApproovSdk.Status.SUCCESS) &&
+                (approovResults.getStatus() != ApproovSdk.Status.UNKNOWN_KEY))
             // we are unable to get the secure string due to a more permanent error
             throw new ApproovException("precheck:" + approovResults.getStatus().toString());
     }
@@ -364,7 +794,7 @@ public class ApproovService {
      */
     public static String getDeviceID() throws ApproovException {
         try {
-            String deviceID = Approov.getDeviceID();
+            String deviceID = sdk.getDeviceID();
             Log.d(TAG, "getDeviceID: " + deviceID);
             return deviceID;
         }
@@ -385,7 +815,10 @@ public class ApproovService {
      */
     public static void setDataHashInToken(String data) throws ApproovException {
         try {
-            Approov.setDataHashInToken(data);
+            synchronized (dataHashLock) {
+                sdk.setDataHashInToken(data);
+                lastDataHashData = data;
+            }
             Log.d(TAG, "setDataHashInToken");
         }
         catch (IllegalStateException e) {
@@ -411,9 +844,9 @@ public class ApproovService {
      */
     public static String fetchToken(String url) throws ApproovException {
         // fetch the Approov token
-        Approov.TokenFetchResult approovResults;
+        ApproovSdk.Result approovResults;
         try {
-            approovResults = Approov.fetchApproovTokenAndWait(url);
+            approovResults = fetchApproovTokenAndWait(url);
             Log.d(TAG, "fetchToken: " + approovResults.getStatus().toString());
         }
         catch (IllegalStateException e) {
@@ -422,14 +855,17 @@ public class ApproovService {
         catch (IllegalArgumentException e) {
             throw new ApproovException("IllegalArgument: " + e.getMessage());
         }
+        catch (InterruptedIOException e) {
+            throw new ApproovException("Interrupted: " + e.getMessage());
+        }
 
         // process the status
-        if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED))
+        if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED))
             // we are unable to get the token due to network conditions
             throw new ApproovNetworkException("fetchToken: " + approovResults.getStatus().toString());
-        else if (approovResults.getStatus() != Approov.TokenFetchStatus.SUCCESS)
+        else if (approovResults.getStatus() != ApproovSdk.Status.SUCCESS)
             // we are unable to get the token due to a more permanent error
             throw new ApproovException("fetchToken: " + approovResults.getStatus().toString());
         else
@@ -452,7 +888,7 @@ public class ApproovService {
      */
     public static String getMessageSignature(String message) throws ApproovException {
         try {
-            String signature = Approov.getMessageSignature(message);
+            String signature = sdk.getMessageSignature(message);
             Log.d(TAG, "getMessageSignature");
             if (signature == null)
                 throw new ApproovException("no signature available");
@@ -489,9 +925,9 @@ public class ApproovService {
             type = "definition";
 
         // fetch any secure string keyed by the value, catching any exceptions the SDK might throw
-        Approov.TokenFetchResult approovResults;
+        ApproovSdk.Result approovResults;
         try {
-            approovResults = Approov.fetchSecureStringAndWait(key, newDef);
+            approovResults = fetchSecureStringAndWait(key, newDef, ApproovPriority.INTERACTIVE);
             Log.d(TAG, "fetchSecureString " + type + ": " + key + ", " + approovResults.getStatus().toString());
         }
         catch (IllegalStateException e) {
@@ -500,27 +936,101 @@ public class ApproovService {
         catch (IllegalArgumentException e) {
             throw new ApproovException("IllegalArgument: " + e.getMessage());
         }
+        catch (InterruptedIOException e) {
+            throw new ApproovException("Interrupted: " + e.getMessage());
+        }
+
+        // a new definition changes the secure string, so any cached value used for substitutions is stale
+        if (newDef != null)
+            clearSubstitutionCache();
 
         // process the returned Approov status
-        if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
+        checkSecureStringResult("fetchSecureString " + type + " for " + key, approovResults);
+        return approovResults.getSecureString();
+    }
+
+    /**
+     * Fetches the secure strings with the given keys. The lookups are made concurrently, so this
+     * takes about as long as a single fetchSecureString rather than one for each key. Note that
+     * this call may require network transaction and thus may block for some time, so should not be
+     * called from the UI thread. If the attestation fails for any of the keys then an ApproovException
+     * is thrown, in the same way as for fetchSecureString. Note that the returned strings should
+     * NEVER be cached by your app, you should call this function when they are needed.
+     *
+     * @param keys are the secure string keys to be looked up
+     * @return map of the keys to their secure strings (should not be cached by your app), which
+     *         only includes the keys that are defined
+     * @throws ApproovException if there was a problem
+     */
+    public static Map<String, String> fetchSecureStrings(Set<String> keys) throws ApproovException {
+        // fetch the secure strings concurrently, catching any exceptions the SDK might throw
+        Map<String, ApproovSdk.Result> results;
+        try {
+            results = SecureStringBatch.start(sdk, keys, ApproovPriority.INTERACTIVE).await();
+            Log.d(TAG, "fetchSecureStrings: " + keys.size() + " keys");
+        }
+        catch (IllegalStateException e) {
+            throw new ApproovException("IllegalState: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ApproovException("IllegalArgument: " + e.getMessage());
+        }
+        catch (InterruptedIOException e) {
+            throw new ApproovException("Interrupted: " + e.getMessage());
+        }
+
+        // process the returned Approov status for each of the keys
+        Map<String, String> secureStrings = new HashMap<>();
+        for (Map.Entry<String, ApproovSdk.Result> entry: results.entrySet()) {
+            ApproovSdk.Result approovResults = entry.getValue();
+            checkSecureStringResult("fetchSecureStrings lookup for " + entry.getKey(), approovResults);
+            if (approovResults.getSecureString() != null)
+                secureStrings.put(entry.getKey(), approovResults.getSecureString());
+        }
+        return secureStrings;
+    }
+
+    /**
+     * Prefetches the secure strings with the given keys in the background, so that later lookups of
+     * them by fetchSecureString or for substitutions are able to use cached results. This is intended
+     * to be called at app startup with the keys that the first requests will need, and the keys are
+     * also included in any subsequent prefetch. The lookups are made concurrently and any failure is
+     * only logged.
+     *
+     * @param keys are the secure string keys to be prefetched
+     */
+    public static void prefetchSecureStrings(Set<String> keys) {
+        if (isInitialized)
+            prefetcher.prefetchSecureStrings(keys);
+    }
+
+    /**
+     * Checks the result of a secure string fetch made by the app.
+     *
+     * @param description describes the fetch for any exception
+     * @param approovResults is the result of the fetch
+     * @throws ApproovException if the fetch failed
+     */
+    private static void checkSecureStringResult(String description, ApproovSdk.Result approovResults)
+            throws ApproovException {
+        if (approovResults.getStatus() == ApproovSdk.Status.REJECTED) {
             // if the request is rejected then we provide a special exception with additional information
-            throw new ApproovRejectionException("fetchSecureString " + type + " for " + key + ": " +
+            clearSubstitutionCache();
+            throw new ApproovRejectionException(description + ": " +
                     approovResults.getStatus().toString() + ": " + approovResults.getARC() +
                     " " + approovResults.getRejectionReasons(),
                     approovResults.getARC(), approovResults.getRejectionReasons());
-        else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED))
+        }
+        else if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED))
             // we are unable to get the secure string due to network conditions so the request can
             // be retried by the user later
-            throw new ApproovNetworkException("fetchSecureString " + type + " for " + key + ":" +
-                    approovResults.getStatus().toString());
-        else if ((approovResults.getStatus() != Approov.TokenFetchStatus.SUCCESS) &&
-                (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY))
+            throw new ApproovNetworkException(description + ":" + approovResults.getStatus().toString());
+        else if ((approovResults.getStatus() != ApproovSdk.Status.SUCCESS) &&
+                (approovResults.getStatus() != ApproovSdk.Status.UNKNOWN_KEY))
             // we are unable to get the secure string due to a more permanent error
-            throw new ApproovException("fetchSecureString " + type + " for " + key + ":" +
-                    approovResults.getStatus().toString());
-        return approovResults.getSecureString();
+            throw new ApproovException(description + ":" + approovResults.getStatus().toString());
     }
 
     /**
@@ -536,9 +1046,9 @@ public class ApproovService {
      */
     public static String fetchCustomJWT(String payload) throws ApproovException {
         // fetch the custom JWT catching any exceptions the SDK might throw
-        Approov.TokenFetchResult approovResults;
+        ApproovSdk.Result approovResults;
         try {
-            approovResults = Approov.fetchCustomJWTAndWait(payload);
+            approovResults = fetchCustomJWTAndWait(payload);
             Log.d(TAG, "fetchCustomJWT: " + approovResults.getStatus().toString());
         }
         catch (IllegalStateException e) {
@@ -547,47 +1057,247 @@ public class ApproovService {
         catch (IllegalArgumentException e) {
             throw new ApproovException("IllegalArgument: " + e.getMessage());
         }
+        catch (InterruptedIOException e) {
+            throw new ApproovException("Interrupted: " + e.getMessage());
+        }
 
         // process the returned Approov status
-        if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
+        if (approovResults.getStatus() == ApproovSdk.Status.REJECTED)
             // if the request is rejected then we provide a special exception with additional information
             throw new ApproovRejectionException("fetchCustomJWT: "+ approovResults.getStatus().toString() + ": " +
                     approovResults.getARC() +  " " + approovResults.getRejectionReasons(),
                     approovResults.getARC(), approovResults.getRejectionReasons());
-        else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED))
+        else if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED))
             // we are unable to get the custom JWT due to network conditions so the request can
             // be retried by the user later
             throw new ApproovNetworkException("fetchCustomJWT: " + approovResults.getStatus().toString());
-        else if (approovResults.getStatus() != Approov.TokenFetchStatus.SUCCESS)
+        else if (approovResults.getStatus() != ApproovSdk.Status.SUCCESS)
             // we are unable to get the custom JWT due to a more permanent error
             throw new ApproovException("fetchCustomJWT: " + approovResults.getStatus().toString());
         return approovResults.getToken();
     }
 
+    /**
+     * Gets the number of Approov token fetches that have been made to the SDK by the interceptors
+     * since initialization. Concurrent requests for the same host share a single fetch, so this may
+     * be lower than the number of requests made.
+     *
+     * @return count of token fetches made by the interceptors
+     */
+    public static long getTokenFetchCount() {
+        if (tokenFetchCoalescer == null)
+            return 0;
+        return tokenFetchCoalescer.getFetchCount();
+    }
+
+    /**
+     * Gets the number of Approov token fetches by the interceptors that were satisfied by waiting
+     * for an in flight fetch for the same host, rather than making a new fetch to the SDK.
+     *
+     * @return count of coalesced token fetches
+     */
+    public static long getCoalescedTokenFetchCount() {
+        if (tokenFetchCoalescer == null)
+            return 0;
+        return tokenFetchCoalescer.getCoalescedCount();
+    }
+
+    /**
+     * Gets the number of Approov OkHttpClients that have been built since initialization.
+     *
+     * @return count of OkHttpClients built
+     */
+    public static long getClientRebuildCount() {
+        return clientRebuildCount.get();
+    }
+
+    /**
+     * Gets the number of times that an Approov OkHttpClient was not rebuilt after the clients were
+     * cleared, because the configuration and the pins it was built with were unchanged.
+     *
+     * @return count of OkHttpClient rebuilds avoided
+     */
+    public static long getClientRebuildAvoidedCount() {
+        return clientRebuildAvoidedCount.get();
+    }
+
+    /**
+     * Gets the number of Approov token fetches by the interceptors that were avoided because the host was
+     * already known not to be protected by Approov. Such hosts are remembered until the dynamic configuration
+     * changes, or for a few minutes at most.
+     *
+     * @return count of token fetches avoided for unprotected hosts
+     */
+    public static long getUnprotectedHostSkipCount() {
+        HostStatusCache cache = hostStatusCache;
+        if (cache == null)
+            return 0;
+        return cache.getHitCount();
+    }
+
+    /**
+     * Clears the in-memory cache of the secure strings used for header and query parameter substitutions,
+     * so that they are fetched again from the SDK when next needed. The cache is also cleared automatically
+     * whenever the service configuration or the dynamic configuration changes, when a rejection is seen and
+     * when the service is initialized, and each secure string is held for a few minutes at most.
+     */
+    public static void clearSubstitutionCache() {
+        Log.d(TAG, "clearSubstitutionCache");
+        SubstitutionCache cache = substitutionCache;
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Gets the number of secure string fetches for substitutions that were avoided by using a cached result.
+     *
+     * @return count of secure string fetches avoided
+     */
+    public static long getSubstitutionCacheHitCount() {
+        SubstitutionCache cache = substitutionCache;
+        if (cache == null)
+            return 0;
+        return cache.getHitCount();
+    }
+
+    /**
+     * Gets the cache of the secure strings used for substitutions.
+     *
+     * @return the substitution cache, or null if not initialized
+     */
+    static SubstitutionCache getSubstitutionCache() {
+        return substitutionCache;
+    }
+
+    /**
+     * Gets the number of fetches waiting to run on the attestation executor.
+     *
+     * @return current queue length, or 0 if there is no attestation executor
+     */
+    public static int getAttestationQueueLength() {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return 0;
+        return executor.getQueueLength();
+    }
+
+    /**
+     * Gets the number of fetches that have been submitted to the current attestation executor.
+     *
+     * @return count of fetches, or 0 if there is no attestation executor
+     */
+    public static long getAttestationTaskCount() {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return 0;
+        return executor.getTaskCount();
+    }
+
+    /**
+     * Gets the total time that fetches have spent queued on the current attestation executor before
+     * they started.
+     *
+     * @return total queue wait time in milliseconds, or 0 if there is no attestation executor
+     */
+    public static long getAttestationQueueWaitMillis() {
+        AttestationExecutor executor = attestationExecutor;
+        if (executor == null)
+            return 0;
+        return executor.getQueueWaitNanos() / 1000000;
+    }
+
+    /**
+     * Gets the number of dynamic configuration changes that resulted in the OkHttpClients being refreshed
+     * in the background.
+     *
+     * @return count of configuration change refreshes
+     */
+    public static long getConfigChangeRefreshCount() {
+        ConfigChangeHandler handler = configChangeHandler;
+        if (handler == null)
+            return 0;
+        return handler.getRefreshCount();
+    }
+
+    /**
+     * Gets the number of dynamic configuration change reports that did not require a refresh of their
+     * own, either because a refresh was already pending or because the configuration was unchanged.
+     *
+     * @return count of skipped configuration changes
+     */
+    public static long getConfigChangeSkippedCount() {
+        ConfigChangeHandler handler = configChangeHandler;
+        if (handler == null)
+            return 0;
+        return handler.getSkippedCount();
+    }
+
+    /**
+     * Gets the number of requests that have been retried on a rebuilt OkHttpClient because the pins needed
+     * to be applied. See setRetryOnForceApplyPins.
+     *
+     * @return count of requests retried
+     */
+    public static long getPinsRetryCount() {
+        return pinsRetryCount.get();
+    }
+
+    /**
+     * Gets the total time taken to rebuild the OkHttpClient and replay the requests that have been retried
+     * because the pins needed to be applied.
+     *
+     * @return total time in milliseconds spent on retried requests
+     */
+    public static long getPinsRetryTimeMillis() {
+        return pinsRetryNanos.get() / 1000000;
+    }
+
+    /**
+     * Records a request that was retried because the pins needed to be applied.
+     *
+     * @param nanos is the time taken by the retry in nanoseconds
+     */
+    static void recordPinsRetry(long nanos) {
+        pinsRetryCount.incrementAndGet();
+        pinsRetryNanos.addAndGet(nanos);
+    }
+
     /**
      * Clears the OkHttp clients if there are some potential pinning changes that require an
-     * update.
+     * update. A client is only actually rebuilt if the pins or configuration have changed. This
+     * does not take any lock, so may be called from any thread including from within an
+     * interceptor.
      */
-    public static synchronized void clearOkHttpClient() {
+    public static void clearOkHttpClient() {
         Log.d(TAG, "OkHttp clients cleared");
-        okHttpClients.clear();
+        clientGeneration.incrementAndGet();
     }
 
     /**
      * Sets the OkHttpClient.Builder to be used for constructing the Approov OkHttpClient for a
      * named builder. This allows custom configurations to be set, with additional interceptors and
      * properties. This clears the appropriate cached OkHttp client so should only be called when an
-     * actual builder change is required.
+     * actual builder change is required. The builder is built once into a base client from which all
+     * of the Approov OkHttpClients for the name are derived, sharing its connection pool and dispatcher,
+     * so any later changes to the builder are only applied if it is set again. A null builder removes any
+     * builder previously set, so that a default OkHttpClient.Builder is used for the name.
      *
      * @param builderName is the name of the builder to set
-     * @param builder is the OkHttpClient.Builder to be used as a basis for the Approov OkHttpClient
+     * @param builder is the OkHttpClient.Builder to be used as a basis for the Approov OkHttpClient, or null
+     *                to use a default builder
      */
-    public static synchronized void setOkHttpClientBuilder(String builderName, OkHttpClient.Builder builder) {
+    public static void setOkHttpClientBuilder(String builderName, OkHttpClient.Builder builder) {
         Log.d(TAG, "OkHttp client builder set for " + builderName);
-        okHttpBuilders.put(builderName, builder);
-        okHttpClients.remove(builderName);
+        synchronized (getBuilderLock(builderName)) {
+            if (builder == null)
+                okHttpBuilders.remove(builderName);
+            else
+                okHttpBuilders.put(builderName, builder);
+            baseClients.remove(builderName);
+            okHttpClients.remove(builderName);
+        }
     }
 
     /**
@@ -596,7 +1306,7 @@ public class ApproovService {
      *
      * @param builder is the OkHttpClient.Builder to be used as a basis for the Approov OkHttpClient
      */
-    public static synchronized void setOkHttpClientBuilder(OkHttpClient.Builder builder) {
+    public static void setOkHttpClientBuilder(OkHttpClient.Builder builder) {
         setOkHttpClientBuilder(DEFAULT_BUILDER_NAME, builder);
     }
 
@@ -609,298 +1319,308 @@ public class ApproovService {
      * @param builderName is the name for the builder
      * @return OkHttpClient to be used with Approov
      */
-    public static synchronized OkHttpClient getOkHttpClient(String builderName) {
-        OkHttpClient okHttpClient = okHttpClients.get(builderName);
-        if (okHttpClient == null) {
-            // get the builder and warn if none was available
-            OkHttpClient.Builder okHttpBuilder = okHttpBuilders.get(builderName);
-            if (okHttpBuilder == null) {
-                Log.d(TAG, "No builder available for " + builderName);
-                okHttpBuilder = new OkHttpClient.Builder();
-            }
+    public static OkHttpClient getOkHttpClient(String builderName) {
+        // use any cached client without locking if it is still valid
+        CachedClient cachedClient = okHttpClients.get(builderName);
+        if ((cachedClient != null) && (cachedClient.generation == clientGeneration.get()))
+            return cachedClient.client;
+
+        // otherwise build a new client, holding the lock only for this builder so that clients for
+        // other builders remain available
+        synchronized (getBuilderLock(builderName)) {
+            // check whether another thread built the client while we were waiting for the lock
+            long generation = clientGeneration.get();
+            cachedClient = okHttpClients.get(builderName);
+            if ((cachedClient != null) && (cachedClient.generation == generation))
+                return cachedClient.client;
+
+            // get the base client for the builder, which is only built once for each builder that is set
+            OkHttpClient baseClient = getBaseClient(builderName);
 
             // build a new OkHttpClient on demand
+            OkHttpClient okHttpClient;
+            ApproovConfig currentConfig = config;
+            String pinDigest = null;
             if (isInitialized) {
-                // build the pinning configuration
-                CertificatePinner.Builder pinBuilder = new CertificatePinner.Builder();
-                Map<String, List<String>> allPins = Approov.getPins("public-key-sha256");
-                for (Map.Entry<String, List<String>> entry: allPins.entrySet()) {
-                    String domain = entry.getKey();
-                    if (!domain.equals("*")) {
-                        // the * domain is for managed trust roots and should
-                        // not be added directly
-                        List<String> pins = entry.getValue();
-
-                        // if there are no pins then we try and use any managed trust roots
-                        if (pins.isEmpty() && (allPins.get("*") != null))
-                            pins = allPins.get("*");
-
-                        // add the required pins for the domain
-                        for (String pin: pins)
-                            pinBuilder = pinBuilder.add(domain, "sha256/" + pin);
-                    }
+                // get the current pins and reuse the existing client if neither they nor the configuration
+                // have changed since it was built. With dynamic pinning the pins are updated in place so the
+                // client remains valid even if they have changed.
+                PinSnapshot pins = new PinSnapshot(sdk.getPins("public-key-sha256"));
+                pinDigest = pins.getDigest();
+                if (currentConfig.isDynamicPinning())
+                    dynamicPins.set(pins);
+                if ((cachedClient != null) && (cachedClient.dynamicPinning == currentConfig.isDynamicPinning()) &&
+                        (currentConfig.isDynamicPinning() || pinDigest.equals(cachedClient.pinDigest))) {
+                    Log.d(TAG, "Reusing Approov OkHttpClient for " + builderName + " as pins unchanged");
+                    clientRebuildAvoidedCount.incrementAndGet();
+                    okHttpClients.put(builderName, new CachedClient(cachedClient.client, generation,
+                            cachedClient.dynamicPinning, pinDigest));
+                    return cachedClient.client;
                 }
 
-                // remove any existing ApproovTokenInterceptor from the builder
+                // derive the builder from the base client so that the new client shares its connection pool,
+                // dispatcher and TLS configuration, and remove any existing ApproovTokenInterceptor and
+                // CallStartInterceptor from it
+                OkHttpClient.Builder okHttpBuilder = baseClient.newBuilder();
                 List<Interceptor> interceptors = okHttpBuilder.interceptors();
                 Iterator<Interceptor> iter = interceptors.iterator();
                 while (iter.hasNext()) {
                     Interceptor interceptor = iter.next();
-                    if (interceptor instanceof ApproovTokenInterceptor)
+                    if ((interceptor instanceof ApproovTokenInterceptor) ||
+                            (interceptor instanceof CallStartInterceptor))
+                        iter.remove();
+                }
+                iter = okHttpBuilder.networkInterceptors().iterator();
+                while (iter.hasNext()) {
+                    Interceptor interceptor = iter.next();
+                    if (interceptor instanceof DynamicPinningInterceptor)
                         iter.remove();
                 }
 
-                // build the OkHttpClient with the correct pins preset and ApproovTokenInterceptor
+                // apply the pins, either fixed in the client or checked dynamically on each connection
+                if (currentConfig.isDynamicPinning())
+                    okHttpBuilder.addNetworkInterceptor(new DynamicPinningInterceptor(dynamicPins));
+                else
+                    okHttpBuilder.certificatePinner(pins.getCertificatePinner());
+
+                // build the OkHttpClient with the correct pins preset and ApproovTokenInterceptor, with the
+                // CallStartInterceptor first so that it sees each call start before any other interceptor
                 Log.d(TAG, "Building new Approov OkHttpClient for " + builderName);
-                ApproovTokenInterceptor interceptor = new ApproovTokenInterceptor(approovTokenHeader,
-                        approovTokenPrefix, bindingHeader, proceedOnNetworkFail, substitutionHeaders,
-                        substitutionQueryParams, exclusionURLRegexs);
-                okHttpClient = okHttpBuilder.certificatePinner(pinBuilder.build()).addInterceptor(interceptor).build();
+                interceptors.add(0, new CallStartInterceptor());
+                ApproovTokenInterceptor interceptor = new ApproovTokenInterceptor(builderName, currentConfig, sdk,
+                        tokenFetchCoalescer, hostStatusCache);
+                okHttpClient = okHttpBuilder.addInterceptor(interceptor).build();
+                clientRebuildCount.incrementAndGet();
             } else {
                 // if the ApproovService was not initialized then we can't add Approov capabilities
                 Log.e(TAG, "Cannot build Approov OkHttpClient as not initialized");
-                okHttpClient = okHttpBuilder.build();
+                okHttpClient = baseClient;
             }
 
-            // cache the client for future usages
-            okHttpClients.put(builderName, okHttpClient);
+            // cache the client for future usages, recording the generation it was built for so that it is
+            // discarded if the clients were cleared while it was being built
+            okHttpClients.put(builderName, new CachedClient(okHttpClient, generation, currentConfig.isDynamicPinning(),
+                    pinDigest));
+            return okHttpClient;
         }
-        return okHttpClient;
     }
 
     /**
-     * Gets the default kHttpClient that enables the Approov service. This adds the Approov token
-     * in a header to requests, and also pins the connections. The OkHttpClient is constructed
-     * lazily on demand but is cached if there are no changes. Use "setOkHttpClientBuilder" to
-     * provide any special properties.
+     * Updates the pins applied by any clients using dynamic pinning to the latest pins from the Approov SDK.
+     * This takes effect immediately for all subsequent requests on those clients.
+     */
+    static void updateDynamicPins() {
+        PinSnapshot pins = new PinSnapshot(sdk.getPins("public-key-sha256"));
+        PinSnapshot previousPins = dynamicPins.getAndSet(pins);
+        if ((previousPins == null) || !previousPins.getDigest().equals(pins.getDigest()))
+            Log.d(TAG, "Dynamic pins updated");
+    }
+
+    /**
+     * Gets the pins to be applied by clients using dynamic pinning, loading them from the Approov SDK if they
+     * have been cleared because the service was reset or initialized again.
      *
-     * @return OkHttpClient to be used with Approov
+     * @return the current pins, or null if the service is not initialized
      */
-    public static synchronized OkHttpClient getOkHttpClient() {
-        return getOkHttpClient(DEFAULT_BUILDER_NAME);
+    static PinSnapshot loadDynamicPins() {
+        PinSnapshot pins = dynamicPins.get();
+        if ((pins == null) && isInitialized) {
+            updateDynamicPins();
+            pins = dynamicPins.get();
+        }
+        return pins;
     }
-}
 
-/**
- * Callback handler for prefetching. We simply log as we don't need the result
- * itself, as it will be returned as a cached value on a subsequent fetch.
- */
-final class PrefetchCallbackHandler implements Approov.TokenFetchCallback {
-    // logging tag
-    private static final String TAG = "ApproovPrefetch";
+    /**
+     * Sets the data hash for token binding in the SDK, unless it was already set from the same data. The
+     * binding header value is normally unchanged between requests, so this avoids it being hashed again by
+     * the SDK for every request.
+     *
+     * @param data is the data to be hashed and set in the token
+     */
+    static void bindDataHash(String data) {
+        if (data.equals(lastDataHashData))
+            return;
+        synchronized (dataHashLock) {
+            if (!data.equals(lastDataHashData)) {
+                sdk.setDataHashInToken(data);
+                lastDataHashData = data;
+            }
+        }
+    }
 
-    @Override
-    public void approovCallback(Approov.TokenFetchResult result) {
-        if ((result.getStatus() == Approov.TokenFetchStatus.SUCCESS) ||
-            (result.getStatus() == Approov.TokenFetchStatus.UNKNOWN_URL))
-            Log.d(TAG, "Prefetch success");
-        else
-            Log.e(TAG, "Prefetch failure: " + result.getStatus().toString());
+    /**
+     * Reports that a dynamic configuration change has been indicated by the Approov SDK. This is handled
+     * in the background, so it does not block the calling thread.
+     */
+    static void onConfigChanged() {
+        ConfigChangeHandler handler = configChangeHandler;
+        if (handler != null)
+            handler.onConfigChanged();
     }
-}
 
-// interceptor to add Approov tokens or substitute headers and query parameters
-class ApproovTokenInterceptor implements Interceptor {
-    // logging tag
-    private final static String TAG = "ApproovInterceptor";
+    /**
+     * Refreshes the OkHttpClients after a configuration change. Any clients that have already been
+     * obtained are rebuilt immediately, so that a subsequent getOkHttpClient does not need to wait for the
+     * rebuild. Clients are only actually replaced if their pins have changed.
+     */
+    static void refreshOkHttpClients() {
+        if (config.isDynamicPinning())
+            updateDynamicPins();
+        clearOkHttpClient();
+        for (String builderName: okHttpClients.keySet())
+            getOkHttpClient(builderName);
+    }
 
-    // the name of the header to be added to hold the Approov token
-    private String approovTokenHeader;
+    /**
+     * Gets the base OkHttpClient for a named builder, building it if required. Approov OkHttpClients are
+     * derived from this so that rebuilding them does not discard any established connections, and the
+     * builder provided by the app is never modified. This must be called while holding the lock for the
+     * builder.
+     *
+     * @param builderName is the name for the builder
+     * @return the base OkHttpClient for the builder
+     */
+    private static OkHttpClient getBaseClient(String builderName) {
+        OkHttpClient baseClient = baseClients.get(builderName);
+        if (baseClient == null) {
+            // get the builder and warn if none was available
+            OkHttpClient.Builder okHttpBuilder = okHttpBuilders.get(builderName);
+            if (okHttpBuilder == null) {
+                Log.d(TAG, "No builder available for " + builderName);
+                okHttpBuilder = new OkHttpClient.Builder();
+            }
+            baseClient = okHttpBuilder.build();
+            baseClients.put(builderName, baseClient);
+        }
+        return baseClient;
+    }
 
-    // prefix to be used for the Approov token
-    private String approovTokenPrefix;
+    /**
+     * Gets the lock to be held while building the OkHttpClient for a named builder.
+     *
+     * @param builderName is the name for the builder
+     * @return the lock object for the builder
+     */
+    private static Object getBuilderLock(String builderName) {
+        Object lock = builderLocks.get(builderName);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = builderLocks.putIfAbsent(builderName, newLock);
+            if (lock == null)
+                lock = newLock;
+        }
+        return lock;
+    }
 
-    // any binding header for Approov token binding, or null if none
-    private String bindingHeader;
+    // CachedClient holds an OkHttpClient along with the client generation in which it was last validated,
+    // and the pinning that it was built with
+    private static final class CachedClient {
+        // the cached client
+        final OkHttpClient client;
 
-    // true if the interceptor should proceed on network failures and not add an Approov token
-    private boolean proceedOnNetworkFail;
+        // the client generation in which the client was last built or validated
+        final long generation;
 
-    // map of headers that should have their values substituted for secure strings, mapped to their
-    // required prefixes
-    private Map<String, String> substitutionHeaders;
+        // true if the client was built for dynamic pinning
+        final boolean dynamicPinning;
 
-    // set of query parameters that may be substituted, specified by the key name, mapped to their regex patterns
-    private Map<String, Pattern> substitutionQueryParams;
+        // digest of the pins applied by the client, or null if it has no Approov pinning
+        final String pinDigest;
 
-    // set of URL regexs that should be excluded from any Approov protection, mapped to the compiled Pattern
-    private Map<String, Pattern> exclusionURLRegexs;
+        CachedClient(OkHttpClient client, long generation, boolean dynamicPinning, String pinDigest) {
+            this.client = client;
+            this.generation = generation;
+            this.dynamicPinning = dynamicPinning;
+            this.pinDigest = pinDigest;
+        }
+    }
 
     /**
-     * Constructs a new interceptor that adds Approov tokens and substitute headers or query
-     * parameters.
+     * Prepares a request asynchronously for the named builder, adding the Approov token and performing
+     * any header or query parameter substitutions without blocking the calling thread. The outcome is
+     * provided to the callback once the token, and any secure strings required, have been obtained.
+     * The prepared request is marked so that it is not processed again by the Approov interceptor, and
+     * it should be sent promptly using the OkHttpClient for the same builder since the token it holds
+     * will expire.
      *
-     * @param approovTokenHeader is the name of the header to be used for the Approov token
-     * @param approovTokenPrefix is the prefix string to be used with the Approov token
-     * @param bindingHeader is any token binding header to use or null otherwise
-     * @param proceedOnNetworkFail is true the interceptor should proceed on Approov networking failures
-     * @param substitutionHeaders is the map of secure string substitution headers mapped to any required prefixes
-     * @param substitutionQueryParams is the set of query parameter key names subject to substitution
-     * @param exclusionURLRegexs specifies regexs of URLs that should be excluded
+     * @param builderName is the name for the builder whose configuration should be used
+     * @param request is the request to be prepared
+     * @param callback is the callback to receive the prepared request or any failure
      */
-    public ApproovTokenInterceptor(String approovTokenHeader, String approovTokenPrefix, String bindingHeader,
-                                   boolean proceedOnNetworkFail, Map<String, String> substitutionHeaders,
-                                   Set<String> substitutionQueryParams, Map<String, Pattern> exclusionURLRegexs) {
-        this.approovTokenHeader = approovTokenHeader;
-        this.approovTokenPrefix = approovTokenPrefix;
-        this.bindingHeader = bindingHeader;
-        this.proceedOnNetworkFail = proceedOnNetworkFail;
-        this.substitutionHeaders = new HashMap<>(substitutionHeaders);
-        this.substitutionQueryParams = new HashMap<>();
-        for (String key: substitutionQueryParams) {
-            try {
-                Pattern pattern = Pattern.compile("[\\?&]" + key + "=([^&;]+)");
-                this.substitutionQueryParams.put(key, pattern);
-            }
-            catch (PatternSyntaxException e) {
-                Log.e(TAG, "addSubstitutionQueryParam " + key + " error: " + e.getMessage());
-            }
+    public static void prepareRequest(String builderName, Request request, ApproovRequestCallback callback) {
+        // find the interceptor for the client as this holds the configuration to be used
+        ApproovTokenInterceptor interceptor = null;
+        for (Interceptor clientInterceptor: getOkHttpClient(builderName).interceptors()) {
+            if (clientInterceptor instanceof ApproovTokenInterceptor)
+                interceptor = (ApproovTokenInterceptor) clientInterceptor;
         }
-        this.exclusionURLRegexs = new HashMap<>(exclusionURLRegexs);
-    }
 
-    @Override
-    public Response intercept(Chain chain) throws IOException {
-        // check if the URL matches one of the exclusion regexs and just proceed
-        Request request = chain.request();
-        String url = request.url().toString();
-        for (Pattern pattern: exclusionURLRegexs.values()) {
-            Matcher matcher = pattern.matcher(url);
-            if (matcher.find())
-                return chain.proceed(request);
+        // if the ApproovService was not initialized then there is nothing to prepare
+        if (interceptor == null) {
+            Log.e(TAG, "Cannot prepare request as not initialized");
+            callback.onRequestPrepared(request);
+            return;
         }
+        new ApproovRequestPreparer(sdk, interceptor, config, request, callback).start();
+    }
 
-        // update the data hash based on any token binding header (presence is optional)
-        if ((bindingHeader != null) && request.headers().names().contains(bindingHeader))
-            Approov.setDataHashInToken(request.header(bindingHeader));
-
-        // request an Approov token for the domain
-        String host = request.url().host();
-        Approov.TokenFetchResult approovResults = Approov.fetchApproovTokenAndWait(host);
-
-        // provide information about the obtained token or error (note "approov token -check" can
-        // be used to check the validity of the token and if you use token annotations they
-        // will appear here to determine why a request is being rejected)
-        Log.d(TAG, "Token for " + host + ": " + approovResults.getLoggableToken());
+    /**
+     * Prepares a request asynchronously for the default builder. See the description of
+     * prepareRequest for a named builder for details.
+     *
+     * @param request is the request to be prepared
+     * @param callback is the callback to receive the prepared request or any failure
+     */
+    public static void prepareRequest(Request request, ApproovRequestCallback callback) {
+        prepareRequest(DEFAULT_BUILDER_NAME, request, callback);
+    }
 
-        // force a pinning change if there is any dynamic config update
-        if (approovResults.isConfigChanged()) {
-            Approov.fetchConfig();
-            ApproovService.clearOkHttpClient();
-        }
-
-        // we cannot proceed if the pins need to be updated. This will be cleared by using getOkHttpClient
-        // but will persist if the app fails to rebuild the OkHttpClient regularly. This might occur
-        // on first use after initial app install if the initial network fetch was unable to obtain
-        // the dynamic configuration for the account if there was poor network connectivity at that
-        // point.
-        if (approovResults.isForceApplyPins()) {
-            ApproovService.clearOkHttpClient();
-            throw new ApproovNetworkException("Pins need to be updated");
-        }
-
-        // check the status of Approov token fetch
-        if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS)
-            // we successfully obtained a token so add it to the header for the request
-            request = request.newBuilder().header(approovTokenHeader, approovTokenPrefix + approovResults.getToken()).build();
-        else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                 (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                 (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-            // we are unable to get an Approov token due to network conditions so the request can
-            // be retried by the user later - unless this is overridden
-            if (!proceedOnNetworkFail)
-                throw new ApproovNetworkException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
-        }
-        else if ((approovResults.getStatus() != Approov.TokenFetchStatus.NO_APPROOV_SERVICE) &&
-                 (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_URL) &&
-                 (approovResults.getStatus() != Approov.TokenFetchStatus.UNPROTECTED_URL))
-            // we have failed to get an Approov token with a more serious permanent error
-            throw new ApproovException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
-
-        // we only continue additional processing if we had a valid status from Approov, to prevent additional delays
-        // by trying to fetch from Approov again and this also protects against header substitutions in domains not
-        // protected by Approov and therefore potential subject to a MitM
-        if ((approovResults.getStatus() != Approov.TokenFetchStatus.SUCCESS) &&
-                (approovResults.getStatus() != Approov.TokenFetchStatus.UNPROTECTED_URL))
-            return chain.proceed(request);
-
-        // we now deal with any header substitutions, which may require further fetches but these
-        // should be using cached results
-        for (Map.Entry<String, String> entry: substitutionHeaders.entrySet()) {
-            String header = entry.getKey();
-            String prefix = entry.getValue();
-            String value = request.header(header);
-            if ((value != null) && value.startsWith(prefix) && (value.length() > prefix.length())) {
-                approovResults = Approov.fetchSecureStringAndWait(value.substring(prefix.length()), null);
-                Log.d(TAG, "Substituting header: " + header + ", " + approovResults.getStatus().toString());
-                if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS) {
-                    // substitute the header
-                    request = request.newBuilder().header(header, prefix + approovResults.getSecureString()).build();
-                }
-                else if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
-                    // if the request is rejected then we provide a special exception with additional information
-                    throw new ApproovRejectionException("Header substitution for " + header + ": " +
-                            approovResults.getStatus().toString() + ": " + approovResults.getARC() +
-                            " " + approovResults.getRejectionReasons(),
-                            approovResults.getARC(), approovResults.getRejectionReasons());
-                else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                        (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                        (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-                    // we are unable to get the secure string due to network conditions so the request can
-                    // be retried by the user later - unless this is overridden
-                    if (!proceedOnNetworkFail)
-                        throw new ApproovNetworkException("Header substitution for " + header + ": " +
-                            approovResults.getStatus().toString());
-                }
-                else if (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY)
-                    // we have failed to get a secure string with a more serious permanent error
-                    throw new ApproovException("Header substitution for " + header + ": " +
-                            approovResults.getStatus().toString());
+    /**
+     * Enqueues a request on the OkHttpClient for the named builder, after first preparing it
+     * asynchronously with prepareRequest. This means that no OkHttp dispatcher thread is held while
+     * waiting for Approov attestation to complete. Any failure to prepare the request is reported to
+     * the callback in the same way as a failure of the call itself.
+     *
+     * @param builderName is the name for the builder
+     * @param request is the request to be sent
+     * @param callback is the OkHttp callback to receive the response or any failure
+     */
+    public static void enqueue(final String builderName, Request request, final Callback callback) {
+        prepareRequest(builderName, request, new ApproovRequestCallback() {
+            @Override
+            public void onRequestPrepared(Request prepared) {
+                getOkHttpClient(builderName).newCall(prepared).enqueue(callback);
             }
-        }
 
-        // we now deal with any query parameter substitutions, which may require further fetches but these
-        // should be using cached results
-        String currentURL = request.url().toString();
-        for (Map.Entry<String, Pattern> entry: substitutionQueryParams.entrySet()) {
-            String queryKey = entry.getKey();
-            Pattern pattern = entry.getValue();
-            Matcher matcher = pattern.matcher(currentURL);
-            if (matcher.find()) {
-                // we have found an occurrence of the query parameter to be replaced so we look up the existing
-                // value as a key for a secure string
-                String queryValue = matcher.group(1);
-                approovResults = Approov.fetchSecureStringAndWait(queryValue, null);
-                Log.d(TAG, "Substituting query parameter: " + queryKey + ", " + approovResults.getStatus().toString());
-                if (approovResults.getStatus() == Approov.TokenFetchStatus.SUCCESS) {
-                    // substitute the query parameter
-                    currentURL = new StringBuilder(currentURL).replace(matcher.start(1),
-                            matcher.end(1), approovResults.getSecureString()).toString();
-                    request = request.newBuilder().url(currentURL).build();
-                }
-                else if (approovResults.getStatus() == Approov.TokenFetchStatus.REJECTED)
-                    // if the request is rejected then we provide a special exception with additional information
-                    throw new ApproovRejectionException("Query parameter substitution for " + queryKey + ": " +
-                            approovResults.getStatus().toString() + ": " + approovResults.getARC() +
-                            " " + approovResults.getRejectionReasons(),
-                            approovResults.getARC(), approovResults.getRejectionReasons());
-                else if ((approovResults.getStatus() == Approov.TokenFetchStatus.NO_NETWORK) ||
-                        (approovResults.getStatus() == Approov.TokenFetchStatus.POOR_NETWORK) ||
-                        (approovResults.getStatus() == Approov.TokenFetchStatus.MITM_DETECTED)) {
-                    // we are unable to get the secure string due to network conditions so the request can
-                    // be retried by the user later - unless this is overridden
-                    if (!proceedOnNetworkFail)
-                        throw new ApproovNetworkException("Query parameter substitution for " + queryKey + ": " +
-                            approovResults.getStatus().toString());
-                }
-                else if (approovResults.getStatus() != Approov.TokenFetchStatus.UNKNOWN_KEY)
-                    // we have failed to get a secure string with a more serious permanent error
-                    throw new ApproovException("Query parameter substitution for " + queryKey + ": " +
-                            approovResults.getStatus().toString());
+            @Override
+            public void onRequestFailure(Request original, ApproovException e) {
+                Call call = getOkHttpClient(builderName).newCall(original);
+                callback.onFailure(call, e);
             }
-        }
+        });
+    }
+
+    /**
+     * Enqueues a request on the default OkHttpClient, after first preparing it asynchronously. See
+     * the description of enqueue for a named builder for details.
+     *
+     * @param request is the request to be sent
+     * @param callback is the OkHttp callback to receive the response or any failure
+     */
+    public static void enqueue(Request request, Callback callback) {
+        enqueue(DEFAULT_BUILDER_NAME, request, callback);
+    }
 
-        // proceed with the rest of the chain
-        return chain.proceed(request);
+    /**
+     * Gets the default kHttpClient that enables the Approov service. This adds the Approov token
+     * in a header to requests, and also pins the connections. The OkHttpClient is constructed
+     * lazily on demand but is cached if there are no changes. Use "setOkHttpClientBuilder" to
+     * provide any special properties.
+     *
+     * @return OkHttpClient to be used with Approov
+     */
+    public static OkHttpClient getOkHttpClient() {
+        return getOkHttpClient(DEFAULT_BUILDER_NAME);
     }
 }
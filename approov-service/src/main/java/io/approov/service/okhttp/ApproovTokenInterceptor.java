@@ -0,0 +1,590 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// interceptor to add Approov tokens or substitute headers and query parameters
+class ApproovTokenInterceptor implements Interceptor {
+    // logging tag
+    private final static String TAG = "ApproovInterceptor";
+
+    // the name of the builder for the client that the interceptor belongs to
+    private final String builderName;
+
+    // true if pins are applied dynamically so they can be updated without the client being rebuilt, which
+    // is fixed for the interceptor as it depends on how the client was built
+    private final boolean dynamicPinning;
+
+    // time reserved before the call timeout or deadline expires, so that an Approov fetch that is too slow is
+    // reported as an ApproovTimeoutException rather than the call just being canceled by OkHttp
+    private static final long TIMEOUT_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // coalescer used so that concurrent token fetches for the same host share a single fetch
+    private final TokenFetchCoalescer tokenFetchCoalescer;
+
+    // cache of the hosts known not to be protected by Approov, for which no token fetch is needed
+    private final HostStatusCache hostStatusCache;
+
+    /**
+     * Constructs a new interceptor that adds Approov tokens and substitute headers or query
+     * parameters. The interceptor obtains the current configuration for each request, so changes to
+     * it apply immediately without a new client being required.
+     *
+     * @param builderName is the name of the builder for the client that the interceptor belongs to
+     * @param config is the configuration snapshot that the client was built with
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param tokenFetchCoalescer is the coalescer used to share concurrent token fetches for the same host
+     * @param hostStatusCache is the cache of hosts known not to be protected by Approov
+     */
+    public ApproovTokenInterceptor(String builderName, ApproovConfig config, ApproovSdk sdk,
+                                   TokenFetchCoalescer tokenFetchCoalescer, HostStatusCache hostStatusCache) {
+        this.builderName = builderName;
+        this.dynamicPinning = config.isDynamicPinning();
+        this.sdk = sdk;
+        this.tokenFetchCoalescer = tokenFetchCoalescer;
+        this.hostStatusCache = hostStatusCache;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        // check if the URL matches one of the exclusions, or has already been prepared
+        // asynchronously, and just proceed
+        // the same configuration snapshot is used for all of the processing of the request
+        ApproovConfig config = ApproovService.getConfig();
+        Request request = chain.request();
+        if (isExcluded(config, request) || ApproovRequestPreparer.isPrepared(request))
+            return chain.proceed(request);
+
+        // update the data hash based on any token binding header (presence is optional)
+        String bindingData = updateDataHash(config, request);
+
+        // request an Approov token for the domain, sharing any fetch already in flight for it, unless the
+        // domain is already known not to be protected. The wait is bounded by the remaining call time and is
+        // abandoned if the call is canceled.
+        String host = request.url().host();
+        ApproovSdk.Result approovResults = getCachedHostResult(host);
+        if (approovResults == null) {
+            approovResults = tokenFetchCoalescer.fetchApproovToken(host, bindingData, chain.call(),
+                    getTimeoutNanos(chain), ApproovService.getAttestationExecutor(),
+                    ApproovPriority.of(request));
+            recordHostResult(host, approovResults);
+        }
+
+        // if the pins need to be applied then replay the request on a rebuilt client, if enabled and this is not
+        // already a replay
+        if (approovResults.isForceApplyPins() && config.isRetryOnForceApplyPins() && !dynamicPinning &&
+                (request.tag(PinsRetry.class) == null))
+            return retryWithAppliedPins(chain, approovResults);
+
+        // add the token to the request and make any substitutions if the status allows, collecting all
+        // of the changes in a single builder so that only one new request is built
+        Request.Builder requestBuilder = addApproovToken(config, request, null, approovResults);
+        if (shouldSubstitute(approovResults))
+            requestBuilder = substituteHeadersAndQueryParams(config, request, requestBuilder,
+                    fetchSubstitutionSecureStrings(config, request));
+        if (requestBuilder != null)
+            request = requestBuilder.build();
+
+        // proceed with the rest of the chain
+        return chain.proceed(request);
+    }
+
+    /**
+     * Replays a request on a rebuilt client that has the latest pins applied. The replayed request is tagged
+     * so that it is not replayed again if the pins still need to be applied, in which case it fails. The
+     * replay is bounded by the time remaining in the original call and is canceled shortly after the original
+     * call is canceled.
+     * Note that the replay is made on the client obtained from getOkHttpClient for the builder, so any
+     * customizations the app made to that client with newBuilder are not applied to it.
+     *
+     * @param chain is the chain for the original request
+     * @param approovResults is the result of the token fetch that requires the pins to be applied
+     * @return the response to the replayed request
+     * @throws IOException if the replayed request failed or the original call was canceled
+     */
+    private Response retryWithAppliedPins(Chain chain, ApproovSdk.Result approovResults) throws IOException {
+        long startTime = System.nanoTime();
+        Request request = chain.request();
+        if (approovResults.isConfigChanged())
+            onConfigChanged();
+        ApproovService.clearOkHttpClient();
+        try {
+            if (chain.call().isCanceled())
+                throw new IOException("Canceled");
+            Log.d(TAG, "Retrying request to " + request.url().host() + " with updated pins");
+            OkHttpClient okHttpClient = ApproovService.getOkHttpClient(builderName);
+            Request retryRequest = request.newBuilder().tag(PinsRetry.class, PinsRetry.INSTANCE).build();
+            Call retryCall = okHttpClient.newCall(retryRequest);
+            ScheduledFuture<?> watch = ReplayCanceller.watch(chain.call(), retryCall);
+            try {
+                return retryCall.execute();
+            }
+            finally {
+                watch.cancel(false);
+            }
+        }
+        finally {
+            ApproovService.recordPinsRetry(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Handles a configuration change reported by a token fetch for a request. The caches that depend on the
+     * configuration are cleared and the change is handled in the background, so that the request is not
+     * delayed.
+     */
+    private void onConfigChanged() {
+        hostStatusCache.clear();
+        ApproovService.getSubstitutionCache().clear();
+        ApproovService.onConfigChanged();
+    }
+
+    /**
+     * Gets the maximum time that may be spent waiting for an Approov fetch for a call. This is the time
+     * remaining before the call deadline or the expiry of the call timeout, less a margin so that a fetch that
+     * is too slow is reported with an ApproovTimeoutException before OkHttp cancels the call. If the call has
+     * neither then the wait is not limited, just as OkHttp does not limit the call itself.
+     *
+     * @param chain is the chain for the call being processed
+     * @return the maximum time in nanoseconds, or 0 if there is no limit
+     */
+    private static long getTimeoutNanos(Chain chain) {
+        long remainingNanos = CallStartInterceptor.getRemainingNanos(chain.call());
+        if (remainingNanos == 0)
+            return 0;
+        return Math.max(1, remainingNanos - Math.min(TIMEOUT_MARGIN_NANOS, remainingNanos / 2));
+    }
+
+    /**
+     * Gets any cached token fetch result for a host that is known not to be protected by Approov.
+     *
+     * @param host is the host being requested
+     * @return the cached result, or null if a token fetch is required
+     */
+    ApproovSdk.Result getCachedHostResult(String host) {
+        return hostStatusCache.get(host);
+    }
+
+    /**
+     * Records the result of a token fetch for a host, so that hosts not protected by Approov are remembered
+     * and protected hosts are available for token refresh and prefetching.
+     *
+     * @param host is the host that was requested
+     * @param approovResults is the result of the token fetch
+     */
+    void recordHostResult(String host, ApproovSdk.Result approovResults) {
+        hostStatusCache.record(host, approovResults);
+        TokenRefresher refresher = ApproovService.getTokenRefresher();
+        if (refresher != null)
+            refresher.record(host, approovResults);
+        Prefetcher prefetcher = ApproovService.getPrefetcher();
+        if ((prefetcher != null) && (approovResults.getStatus() == ApproovSdk.Status.SUCCESS))
+            prefetcher.recordHost(host);
+    }
+
+    /**
+     * Determines if the given request should be excluded from any Approov protection.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request to be checked
+     * @return true if the request URL matches one of the exclusions
+     */
+    boolean isExcluded(ApproovConfig config, Request request) {
+        return config.getExclusionMatcher().matches(request.url());
+    }
+
+    /**
+     * Updates the data hash in the Approov SDK based on any token binding header in the request, if the
+     * header value differs from that last used. The presence of the binding header in a request is optional.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request being processed
+     * @return the binding data that was set, or null if none
+     */
+    String updateDataHash(ApproovConfig config, Request request) {
+        String bindingHeader = config.getBindingHeader();
+        if (bindingHeader == null)
+            return null;
+        String bindingData = request.header(bindingHeader);
+        if (bindingData != null)
+            ApproovService.bindDataHash(bindingData);
+        return bindingData;
+    }
+
+    /**
+     * Processes the result of an Approov token fetch for a request, adding the token header if a
+     * token was obtained.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request being processed
+     * @param requestBuilder is the builder holding any changes already made to the request, or null if none
+     * @param approovResults is the result of the token fetch for the request host
+     * @return the builder holding the changes to the request, or null if there are none
+     * @throws ApproovException if the request should not proceed
+     */
+    Request.Builder addApproovToken(ApproovConfig config, Request request, Request.Builder requestBuilder,
+                                    ApproovSdk.Result approovResults) throws ApproovException {
+        // provide information about the obtained token or error (note "approov token -check" can
+        // be used to check the validity of the token and if you use token annotations they
+        // will appear here to determine why a request is being rejected)
+        String host = request.url().host();
+        Log.d(TAG, "Token for " + host + ": " + approovResults.getLoggableToken());
+
+        // force a pinning change if there is any dynamic config update, which is handled in the background
+        // so that the request is not delayed
+        if (approovResults.isConfigChanged())
+            onConfigChanged();
+
+        // we cannot proceed if the pins need to be updated. This will be cleared by using getOkHttpClient
+        // but will persist if the app fails to rebuild the OkHttpClient regularly. This might occur
+        // on first use after initial app install if the initial network fetch was unable to obtain
+        // the dynamic configuration for the account if there was poor network connectivity at that
+        // point. With dynamic pinning the latest pins are applied before the request connects so it
+        // may proceed.
+        if (approovResults.isForceApplyPins() && dynamicPinning)
+            ApproovService.updateDynamicPins();
+        else if (approovResults.isForceApplyPins()) {
+            ApproovService.clearOkHttpClient();
+            throw new ApproovNetworkException("Pins need to be updated");
+        }
+
+        // check the status of Approov token fetch
+        if (approovResults.getStatus() == ApproovSdk.Status.SUCCESS) {
+            // we successfully obtained a token so add it to the header for the request
+            if (requestBuilder == null)
+                requestBuilder = request.newBuilder();
+            requestBuilder.header(config.getApproovTokenHeader(), config.getApproovTokenPrefix() + approovResults.getToken());
+        }
+        else if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                 (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                 (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED)) {
+            // we are unable to get an Approov token due to network conditions so the request can
+            // be retried by the user later - unless this is overridden
+            if (!config.isProceedOnNetworkFail())
+                throw new ApproovNetworkException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
+        }
+        else if ((approovResults.getStatus() != ApproovSdk.Status.NO_APPROOV_SERVICE) &&
+                 (approovResults.getStatus() != ApproovSdk.Status.UNKNOWN_URL) &&
+                 (approovResults.getStatus() != ApproovSdk.Status.UNPROTECTED_URL)) {
+            // we have failed to get an Approov token with a more serious permanent error, and a rejection
+            // means any secure strings previously obtained should no longer be used
+            if (approovResults.getStatus() == ApproovSdk.Status.REJECTED)
+                ApproovService.getSubstitutionCache().clear();
+            throw new ApproovException("Approov token fetch for " + host + ": " + approovResults.getStatus().toString());
+        }
+        return requestBuilder;
+    }
+
+    /**
+     * Determines if header and query parameter substitutions should be made for a request. We only
+     * continue additional processing if we had a valid status from Approov, to prevent additional delays
+     * by trying to fetch from Approov again and this also protects against header substitutions in domains
+     * not protected by Approov and therefore potential subject to a MitM.
+     *
+     * @param approovResults is the result of the token fetch for the request host
+     * @return true if substitutions should be made
+     */
+    boolean shouldSubstitute(ApproovSdk.Result approovResults) {
+        return (approovResults.getStatus() == ApproovSdk.Status.SUCCESS) ||
+                (approovResults.getStatus() == ApproovSdk.Status.UNPROTECTED_URL);
+    }
+
+    /**
+     * Gets the secure string keys that are needed to perform the header and query parameter
+     * substitutions for a request.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request being processed
+     * @return set of secure string keys that will be looked up for substitutions
+     */
+    Set<String> getSubstitutionKeys(ApproovConfig config, Request request) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, String> entry: config.getSubstitutionHeaders().entrySet()) {
+            String prefix = entry.getValue();
+            String value = request.header(entry.getKey());
+            if ((value != null) && value.startsWith(prefix) && (value.length() > prefix.length()))
+                keys.add(value.substring(prefix.length()));
+        }
+        Set<String> substitutionQueryParams = config.getSubstitutionQueryParams();
+        if (!substitutionQueryParams.isEmpty()) {
+            HttpUrl url = request.url();
+            for (int i = 0; i < url.querySize(); i++) {
+                String queryValue = url.queryParameterValue(i);
+                if (substitutionQueryParams.contains(url.queryParameterName(i)) && (queryValue != null) &&
+                        !queryValue.isEmpty())
+                    keys.add(queryValue);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Fetches the secure strings needed for the substitutions for a request. Cached results are used where
+     * available, and if more than one of the others is needed then they are fetched concurrently, rather
+     * than one after another as each substitution is made.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request being processed
+     * @return the results for the secure string keys, or null if they should be fetched as required
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the fetches
+     */
+    private Map<String, ApproovSdk.Result> fetchSubstitutionSecureStrings(ApproovConfig config, Request request)
+            throws InterruptedIOException {
+        if (config.getSubstitutionHeaders().isEmpty() && config.getSubstitutionQueryParams().isEmpty())
+            return null;
+        Set<String> keys = getSubstitutionKeys(config, request);
+        if (keys.size() < 2)
+            return null;
+
+        // only fetch the keys that are not already cached
+        SubstitutionCache cache = ApproovService.getSubstitutionCache();
+        Map<String, ApproovSdk.Result> secureStrings = new HashMap<>();
+        Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            ApproovSdk.Result cachedResult = cache.get(key);
+            if (cachedResult != null) {
+                secureStrings.put(key, cachedResult);
+                iterator.remove();
+            }
+        }
+        if (keys.size() < 2)
+            return secureStrings;
+        long generation = cache.getGeneration();
+        Map<String, ApproovSdk.Result> fetched = SecureStringBatch.start(sdk, keys, ApproovPriority.of(request)).await();
+        for (Map.Entry<String, ApproovSdk.Result> entry: fetched.entrySet())
+            cache.put(entry.getKey(), entry.getValue(), generation);
+        secureStrings.putAll(fetched);
+        return secureStrings;
+    }
+
+    /**
+     * Performs any header and query parameter substitutions for a request. The values to be substituted
+     * are taken from the original request and the substitutions are made in the request builder.
+     *
+     * @param config is the configuration being applied to the request
+     * @param request is the request being processed
+     * @param requestBuilder is the builder holding any changes already made to the request, or null if none
+     * @param secureStrings provides the already obtained results for secure string keys, or null if
+     *                      they should be fetched from the SDK as required
+     * @return the builder holding the changes to the request, or null if there are none
+     * @throws ApproovException if the request should not proceed
+     */
+    Request.Builder substituteHeadersAndQueryParams(ApproovConfig config, Request request,
+                                                    Request.Builder requestBuilder,
+                                                    Map<String, ApproovSdk.Result> secureStrings)
+            throws ApproovException {
+        // we now deal with any header substitutions, which may require further fetches but these
+        // should be using cached results
+        for (Map.Entry<String, String> entry: config.getSubstitutionHeaders().entrySet()) {
+            String header = entry.getKey();
+            String prefix = entry.getValue();
+            String value = request.header(header);
+            if ((value != null) && value.startsWith(prefix) && (value.length() > prefix.length())) {
+                ApproovSdk.Result approovResults = fetchSecureString(value.substring(prefix.length()), secureStrings,
+                        ApproovPriority.of(request));
+                Log.d(TAG, "Substituting header: " + header + ", " + approovResults.getStatus().toString());
+                String secureString = checkSubstitutionResult(config, "Header substitution for " + header,
+                        approovResults);
+                if (secureString != null) {
+                    // substitute the header
+                    if (requestBuilder == null)
+                        requestBuilder = request.newBuilder();
+                    requestBuilder.header(header, prefix + secureString);
+                }
+            }
+        }
+
+        // we now deal with any query parameter substitutions, which may require further fetches but these
+        // should be using cached results
+        if (!config.getSubstitutionQueryParams().isEmpty()) {
+            HttpUrl url = substituteQueryParams(config, request.url(), secureStrings,
+                    ApproovPriority.of(request));
+            if (url != null) {
+                if (requestBuilder == null)
+                    requestBuilder = request.newBuilder();
+                requestBuilder.url(url);
+            }
+        }
+        return requestBuilder;
+    }
+
+    /**
+     * Performs any query parameter substitutions for a URL. Every occurrence of a query parameter subject to
+     * substitution is considered, including repeated occurrences of the same key. The URL is walked once and
+     * if any substitutions are made then a single new URL is built with them all.
+     *
+     * @param config is the configuration being applied to the request
+     * @param url is the URL of the request being processed
+     * @param secureStrings provides the already obtained results for secure string keys, or null if
+     *                      they should be fetched from the SDK as required
+     * @param priority is the priority of the request for any secure string fetches
+     * @return the URL with substitutions made, or null if no substitutions were made
+     * @throws ApproovException if the request should not proceed
+     */
+    private HttpUrl substituteQueryParams(ApproovConfig config, HttpUrl url,
+                                          Map<String, ApproovSdk.Result> secureStrings,
+                                          ApproovPriority priority) throws ApproovException {
+        Set<String> substitutionQueryParams = config.getSubstitutionQueryParams();
+        // find the values of any query parameters to be substituted
+        String[] substitutedValues = null;
+        int querySize = url.querySize();
+        for (int i = 0; i < querySize; i++) {
+            String queryKey = url.queryParameterName(i);
+            String queryValue = url.queryParameterValue(i);
+            if (substitutionQueryParams.contains(queryKey) && (queryValue != null) && !queryValue.isEmpty()) {
+                // we have found an occurrence of the query parameter to be replaced so we look up the existing
+                // value as a key for a secure string
+                ApproovSdk.Result approovResults = fetchSecureString(queryValue, secureStrings, priority);
+                Log.d(TAG, "Substituting query parameter: " + queryKey + ", " + approovResults.getStatus().toString());
+                String secureString = checkSubstitutionResult(config, "Query parameter substitution for " + queryKey,
+                        approovResults);
+                if (secureString != null) {
+                    if (substitutedValues == null)
+                        substitutedValues = new String[querySize];
+                    substitutedValues[i] = secureString;
+                }
+            }
+        }
+        if (substitutedValues == null)
+            return null;
+
+        // rebuild the query, keeping the original encoding of any query parameters that are not substituted.
+        // The encoded query is split in the same way as HttpUrl does so that the indices correspond.
+        HttpUrl.Builder urlBuilder = url.newBuilder().query(null);
+        String encodedQuery = url.encodedQuery();
+        int pos = 0;
+        for (int i = 0; i < querySize; i++) {
+            int ampersand = encodedQuery.indexOf('&', pos);
+            if (ampersand == -1)
+                ampersand = encodedQuery.length();
+            String encodedParam = encodedQuery.substring(pos, ampersand);
+            pos = ampersand + 1;
+            if (substitutedValues[i] != null)
+                urlBuilder.addQueryParameter(url.queryParameterName(i), substitutedValues[i]);
+            else {
+                int equals = encodedParam.indexOf('=');
+                if (equals == -1)
+                    urlBuilder.addEncodedQueryParameter(encodedParam, null);
+                else
+                    urlBuilder.addEncodedQueryParameter(encodedParam.substring(0, equals), encodedParam.substring(equals + 1));
+            }
+        }
+        return urlBuilder.build();
+    }
+
+    /**
+     * Fetches a secure string for a substitution, using any result that has already been obtained or
+     * that is cached.
+     *
+     * @param key is the secure string key to be looked up
+     * @param secureStrings provides the already obtained results, or null if they should be fetched
+     * @param priority is the priority of any fetch on the attestation executor
+     * @return the result of the secure string fetch
+     * @throws ApproovException if the thread was interrupted while waiting for the fetch
+     */
+    private ApproovSdk.Result fetchSecureString(String key, Map<String, ApproovSdk.Result> secureStrings,
+                                                ApproovPriority priority) throws ApproovException {
+        ApproovSdk.Result approovResults = null;
+        if (secureStrings != null)
+            approovResults = secureStrings.get(key);
+        if (approovResults == null) {
+            SubstitutionCache cache = ApproovService.getSubstitutionCache();
+            approovResults = cache.get(key);
+            if (approovResults == null) {
+                long generation = cache.getGeneration();
+                try {
+                    approovResults = ApproovService.fetchSecureStringAndWait(key, null, priority);
+                }
+                catch (InterruptedIOException e) {
+                    throw new ApproovException("Interrupted: " + e.getMessage());
+                }
+                cache.put(key, approovResults, generation);
+            }
+        }
+        Prefetcher prefetcher = ApproovService.getPrefetcher();
+        if ((prefetcher != null) && (approovResults.getStatus() == ApproovSdk.Status.SUCCESS))
+            prefetcher.recordSecureStringKey(key);
+        return approovResults;
+    }
+
+    /**
+     * Checks the result of a secure string fetch for a substitution.
+     *
+     * @param config is the configuration being applied to the request
+     * @param description describes the substitution being made for any exception
+     * @param approovResults is the result of the secure string fetch
+     * @return the secure string to be substituted, or null if no substitution should be made
+     * @throws ApproovException if the request should not proceed
+     */
+    private String checkSubstitutionResult(ApproovConfig config, String description,
+                                           ApproovSdk.Result approovResults) throws ApproovException {
+        if (approovResults.getStatus() == ApproovSdk.Status.SUCCESS)
+            return approovResults.getSecureString();
+        else if (approovResults.getStatus() == ApproovSdk.Status.REJECTED) {
+            // if the request is rejected then we provide a special exception with additional information
+            ApproovService.getSubstitutionCache().clear();
+            throw new ApproovRejectionException(description + ": " +
+                    approovResults.getStatus().toString() + ": " + approovResults.getARC() +
+                    " " + approovResults.getRejectionReasons(),
+                    approovResults.getARC(), approovResults.getRejectionReasons());
+        }
+        else if ((approovResults.getStatus() == ApproovSdk.Status.NO_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.POOR_NETWORK) ||
+                (approovResults.getStatus() == ApproovSdk.Status.MITM_DETECTED)) {
+            // we are unable to get the secure string due to network conditions so the request can
+            // be retried by the user later - unless this is overridden
+            if (!config.isProceedOnNetworkFail())
+                throw new ApproovNetworkException(description + ": " + approovResults.getStatus().toString());
+        }
+        else if (approovResults.getStatus() != ApproovSdk.Status.UNKNOWN_KEY)
+            // we have failed to get a secure string with a more serious permanent error
+            throw new ApproovException(description + ": " + approovResults.getStatus().toString());
+        return null;
+    }
+
+    // PinsRetry is the tag type used to mark requests that are being replayed with the pins applied
+    private static final class PinsRetry {
+        // the single tag instance
+        static final PinsRetry INSTANCE = new PinsRetry();
+
+        private PinsRetry() {
+        }
+    }
+}
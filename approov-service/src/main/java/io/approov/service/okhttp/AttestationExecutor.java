@@ -0,0 +1,342 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// AttestationExecutor runs the blocking Approov SDK fetches on its own bounded set of threads, so that the
+// number of concurrent attestations is limited independently of the OkHttp dispatcher. Queued fetches are
+// run in priority order, so fetches for interactive requests are started ahead of those for background
+// requests, and in submission order otherwise.
+final class AttestationExecutor {
+    // logging tag
+    private static final String TAG = "ApproovAttestation";
+
+    // time for which an idle thread is kept before it exits
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // executor holding the threads and the priority queue of waiting fetches
+    private final ThreadPoolExecutor executor;
+
+    // sequence number for submitted tasks, used to keep the queue in submission order for each priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    // number of tasks that have been submitted
+    private final AtomicLong taskCount = new AtomicLong();
+
+    // total time in nanoseconds that tasks have spent queued before starting
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+
+    /**
+     * Constructs an executor for attestations.
+     *
+     * @param maxConcurrency is the maximum number of fetches that may run concurrently
+     */
+    AttestationExecutor(int maxConcurrency) {
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovAttestation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits a task to be run with the given priority.
+     *
+     * @param priority is the priority of the task
+     * @param task is the task to be run
+     */
+    void execute(ApproovPriority priority, Runnable task) {
+        taskCount.incrementAndGet();
+        executor.execute(new PrioritizedTask(priority, sequence.getAndIncrement(), task));
+    }
+
+    /**
+     * Submits a fetch to be run with the given priority. If the fetch cannot be queued, because the executor
+     * has been shut down, then an INTERNAL_ERROR result is provided to the callback immediately rather than an
+     * exception escaping to the caller. This is not reported as a network failure, as that would allow the
+     * request to proceed without a token if the app permits that on network failures.
+     *
+     * @param priority is the priority of the fetch
+     * @param callback is the callback to receive the result of the fetch
+     * @param fetch is the task that runs the fetch and provides its result to the callback
+     */
+    private void submit(ApproovPriority priority, ApproovSdk.Callback callback, Runnable fetch) {
+        try {
+            execute(priority, fetch);
+        }
+        catch (RejectedExecutionException e) {
+            Log.e(TAG, "Approov fetch rejected: " + e.getMessage());
+            callback.approovCallback(errorResult());
+        }
+    }
+
+    /**
+     * Fetches an Approov token on the executor, providing the result to a callback. Any exception thrown by
+     * the SDK is reported as an INTERNAL_ERROR result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param callback is the callback to receive the result
+     * @param url is the URL giving the domain for the token fetch
+     */
+    void fetchApproovToken(ApproovPriority priority, final ApproovSdk sdk, final ApproovSdk.Callback callback,
+                           final String url) {
+        submit(priority, callback, new Runnable() {
+            @Override
+            public void run() {
+                ApproovSdk.Result result;
+                try {
+                    result = sdk.fetchApproovTokenAndWait(url);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Approov token fetch failed: " + e.getMessage());
+                    result = errorResult();
+                }
+                callback.approovCallback(result);
+            }
+        });
+    }
+
+    /**
+     * Fetches a secure string on the executor, providing the result to a callback. Any exception thrown by
+     * the SDK is reported as an INTERNAL_ERROR result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param callback is the callback to receive the result
+     * @param key is the secure string key to be looked up
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     */
+    void fetchSecureString(ApproovPriority priority, final ApproovSdk sdk, final ApproovSdk.Callback callback,
+                           final String key, final String newDef) {
+        submit(priority, callback, new Runnable() {
+            @Override
+            public void run() {
+                ApproovSdk.Result result;
+                try {
+                    result = sdk.fetchSecureStringAndWait(key, newDef);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Secure string fetch failed: " + e.getMessage());
+                    result = errorResult();
+                }
+                callback.approovCallback(result);
+            }
+        });
+    }
+
+    /**
+     * Fetches a custom JWT on the executor, providing the result to a callback. Any exception thrown by
+     * the SDK is reported as an INTERNAL_ERROR result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param callback is the callback to receive the result
+     * @param payload is the marshaled JSON object for the claims to be included
+     */
+    void fetchCustomJWT(ApproovPriority priority, final ApproovSdk sdk, final ApproovSdk.Callback callback,
+                        final String payload) {
+        submit(priority, callback, new Runnable() {
+            @Override
+            public void run() {
+                ApproovSdk.Result result;
+                try {
+                    result = sdk.fetchCustomJWTAndWait(payload);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Custom JWT fetch failed: " + e.getMessage());
+                    result = errorResult();
+                }
+                callback.approovCallback(result);
+            }
+        });
+    }
+
+    /**
+     * Fetches an Approov token on the executor and waits for the result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param url is the URL giving the domain for the token fetch
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    ApproovSdk.Result fetchApproovTokenAndWait(ApproovPriority priority, ApproovSdk sdk, String url)
+            throws InterruptedIOException {
+        ResultWaiter waiter = new ResultWaiter();
+        fetchApproovToken(priority, sdk, waiter, url);
+        return waiter.await();
+    }
+
+    /**
+     * Fetches a secure string on the executor and waits for the result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param key is the secure string key to be looked up
+     * @param newDef is any new definition for the secure string, or null for lookup only
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    ApproovSdk.Result fetchSecureStringAndWait(ApproovPriority priority, ApproovSdk sdk, String key, String newDef)
+            throws InterruptedIOException {
+        ResultWaiter waiter = new ResultWaiter();
+        fetchSecureString(priority, sdk, waiter, key, newDef);
+        return waiter.await();
+    }
+
+    /**
+     * Fetches a custom JWT on the executor and waits for the result.
+     *
+     * @param priority is the priority of the fetch
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param payload is the marshaled JSON object for the claims to be included
+     * @return the result of the fetch
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    ApproovSdk.Result fetchCustomJWTAndWait(ApproovPriority priority, ApproovSdk sdk, String payload)
+            throws InterruptedIOException {
+        ResultWaiter waiter = new ResultWaiter();
+        fetchCustomJWT(priority, sdk, waiter, payload);
+        return waiter.await();
+    }
+
+    /**
+     * Creates the result reported when the SDK throws an exception during a fetch, or the fetch is rejected.
+     *
+     * @return an INTERNAL_ERROR result
+     */
+    private static ApproovSdk.Result errorResult() {
+        return new ApproovSdk.Result(ApproovSdk.Status.INTERNAL_ERROR, "", null, null, null, null, false, false);
+    }
+
+    /**
+     * Shuts down the executor once any queued tasks have been run. Any fetches submitted afterwards are
+     * reported with an INTERNAL_ERROR result. An executor that is just being replaced should not be shut down, as
+     * requests may still be using it, and its threads exit once they have been idle for the keep alive time.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Gets the number of tasks waiting to be run.
+     *
+     * @return the current queue length
+     */
+    int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of tasks that have been submitted.
+     *
+     * @return count of tasks
+     */
+    long getTaskCount() {
+        return taskCount.get();
+    }
+
+    /**
+     * Gets the total time that tasks have spent queued before they started running.
+     *
+     * @return total queue wait time in nanoseconds
+     */
+    long getQueueWaitNanos() {
+        return queueWaitNanos.get();
+    }
+
+    // PrioritizedTask is a task held in the priority queue of the executor
+    private final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        // priority of the task
+        private final ApproovPriority priority;
+
+        // sequence number of the task, giving its order within its priority
+        private final long sequence;
+
+        // the task to be run
+        private final Runnable task;
+
+        // the System.nanoTime at which the task was submitted
+        private final long submitNanos;
+
+        PrioritizedTask(ApproovPriority priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+            this.submitNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            queueWaitNanos.addAndGet(System.nanoTime() - submitNanos);
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority)
+                return priority.compareTo(other.priority);
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+
+    // ResultWaiter receives the result of a fetch for a caller that waits for it
+    private static final class ResultWaiter implements ApproovSdk.Callback {
+        // latch that is released when the result is received
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // the result of the fetch, valid once the latch is released
+        private volatile ApproovSdk.Result result;
+
+        @Override
+        public void approovCallback(ApproovSdk.Result approovResults) {
+            result = approovResults;
+            done.countDown();
+        }
+
+        /**
+         * Waits for the result of the fetch.
+         *
+         * @return the result of the fetch
+         * @throws InterruptedIOException if the thread was interrupted while waiting
+         */
+        ApproovSdk.Result await() throws InterruptedIOException {
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for Approov fetch");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okio.Timeout;
+
+// CallStartInterceptor records when each call made by an Approov OkHttpClient started, so that the time
+// remaining before its call timeout expires can be found. OkHttp does not expose this, but it starts the call
+// timeout immediately before the first application interceptor, on the thread that executes the call, which
+// is where this interceptor is placed. The start is held for each thread and restored once the call has
+// completed, so that calls made from within another call's interceptors are also handled.
+final class CallStartInterceptor implements Interceptor {
+    // the call being executed by each thread and when it started
+    private static final ThreadLocal<CallStart> callStarts = new ThreadLocal<CallStart>() {
+        @Override
+        protected CallStart initialValue() {
+            return new CallStart();
+        }
+    };
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        CallStart callStart = callStarts.get();
+        Call previousCall = callStart.call;
+        long previousStartNanos = callStart.startNanos;
+        callStart.call = chain.call();
+        callStart.startNanos = System.nanoTime();
+        try {
+            return chain.proceed(chain.request());
+        }
+        finally {
+            callStart.call = previousCall;
+            callStart.startNanos = previousStartNanos;
+        }
+    }
+
+    /**
+     * Gets the time remaining for a call before its call timeout expires or its deadline is reached,
+     * whichever is sooner. The call timeout is measured from when the call started, or from now if the call
+     * is not being executed by the current thread on an Approov OkHttpClient.
+     *
+     * @param call is the call being executed
+     * @return the remaining time in nanoseconds, which is at least 1, or 0 if the call has no time limit
+     */
+    static long getRemainingNanos(Call call) {
+        Timeout timeout = call.timeout();
+        long now = System.nanoTime();
+        long remainingNanos = 0;
+        if (timeout.timeoutNanos() > 0) {
+            CallStart callStart = callStarts.get();
+            long startNanos = (callStart.call == call) ? callStart.startNanos : now;
+            remainingNanos = Math.max(1, startNanos + timeout.timeoutNanos() - now);
+        }
+        if (timeout.hasDeadline()) {
+            long deadlineNanos = Math.max(1, timeout.deadlineNanoTime() - now);
+            remainingNanos = (remainingNanos == 0) ? deadlineNanos : Math.min(remainingNanos, deadlineNanos);
+        }
+        return remainingNanos;
+    }
+
+    // CallStart holds the call being executed by a thread and when it started
+    private static final class CallStart {
+        // the call being executed, or null if there is none
+        Call call;
+
+        // the System.nanoTime at which the call started
+        long startNanos;
+    }
+}
@@ -0,0 +1,129 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ConfigChangeHandler deals with dynamic configuration changes reported by Approov token fetches in the
+// background. Any number of reports that arrive while a change is pending are coalesced into a single task,
+// which fetches the new configuration and, only if it has actually changed, refreshes the OkHttpClients so
+// that the new clients are swapped in without blocking the requests that reported the change.
+final class ConfigChangeHandler {
+    // logging tag
+    private static final String TAG = "ApproovConfigChange";
+
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // single background thread used to handle configuration changes
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ApproovConfigChange");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // true if a configuration change has been reported but not yet handled
+    private final AtomicBoolean changePending = new AtomicBoolean();
+
+    // the configuration last fetched from the SDK, only accessed on the background thread
+    private String lastConfig = null;
+
+    // number of configuration changes that resulted in the OkHttpClients being refreshed
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    // number of configuration change reports that were coalesced with a pending change, or that were
+    // ignored because the configuration was actually unchanged
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * Constructs a handler for configuration changes.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     */
+    ConfigChangeHandler(ApproovSdk sdk) {
+        this.sdk = sdk;
+    }
+
+    /**
+     * Reports that a configuration change has been indicated by the Approov SDK. This returns immediately,
+     * with the change being handled in the background if it is not already pending.
+     */
+    void onConfigChanged() {
+        if (!changePending.compareAndSet(false, true)) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // clear the pending flag before fetching so that any change reported from now on is handled
+                // by a further task
+                changePending.set(false);
+                try {
+                    String config = sdk.fetchConfig();
+                    if ((config != null) && config.equals(lastConfig)) {
+                        Log.d(TAG, "Configuration unchanged");
+                        skippedCount.incrementAndGet();
+                        return;
+                    }
+                    lastConfig = config;
+                    Log.d(TAG, "Configuration changed, refreshing OkHttp clients");
+                    ApproovService.refreshOkHttpClients();
+                    refreshCount.incrementAndGet();
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Configuration change handling failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Shuts down the background thread once any pending change has been handled.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Gets the number of configuration changes that resulted in the OkHttpClients being refreshed.
+     *
+     * @return count of refreshes
+     */
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Gets the number of configuration change reports that did not require a refresh of their own.
+     *
+     * @return count of skipped configuration changes
+     */
+    long getSkippedCount() {
+        return skippedCount.get();
+    }
+}
@@ -0,0 +1,116 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import okhttp3.Connection;
+import okhttp3.Handshake;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+// DynamicPinningInterceptor is a network interceptor that checks the Approov pins for each connection
+// against the current pins at the time of use, rather than the pins being fixed in the OkHttpClient when it
+// is built. The pins are read from a snapshot that is swapped atomically whenever they are updated, so a pin
+// update takes effect immediately without the OkHttpClient, and its connection pool, being replaced. A
+// connection whose pins no longer match is failed before any request data is sent on it. The pins are
+// checked for the host of each request rather than the host the connection was made for, as an HTTP/2
+// connection may be shared by requests to other hosts covered by its certificate. The certificates checked
+// are those of the connection handshake, which OkHttp has already reduced to the trusted chain using the
+// platform's certificate chain cleaner (X509TrustManagerExtensions on Android), in the same way as for a
+// CertificatePinner in the client, so other certificates presented by the server cannot satisfy the pins.
+class DynamicPinningInterceptor implements Interceptor {
+    // minimum number of connections tracked before closed connections are discarded
+    private static final int MIN_PRUNE_SIZE = 32;
+
+    // the current pins to be applied, swapped atomically when they are updated
+    private final AtomicReference<PinSnapshot> pins;
+
+    // for each connection, the digest of the pins that each host using it was last successfully checked
+    // against, so that a connection is only checked again for a host if the pins change
+    private final ConcurrentHashMap<Connection, ConcurrentHashMap<String, String>> checkedConnections =
+            new ConcurrentHashMap<>();
+
+    // number of connections tracked at which closed connections are next discarded
+    private volatile int pruneSize = MIN_PRUNE_SIZE;
+
+    /**
+     * Constructs a new interceptor that applies dynamic pinning.
+     *
+     * @param pins is the reference to the current pins
+     */
+    DynamicPinningInterceptor(AtomicReference<PinSnapshot> pins) {
+        this.pins = pins;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        // pins only apply to TLS connections
+        Connection connection = chain.connection();
+        Handshake handshake = (connection == null) ? null : connection.handshake();
+        if (handshake == null)
+            return chain.proceed(chain.request());
+
+        // the pins are cleared when the service is reset, so load them again from the current configuration
+        // and never use the connection if they are not available
+        PinSnapshot currentPins = pins.get();
+        if (currentPins == null) {
+            currentPins = ApproovService.loadDynamicPins();
+            if (currentPins == null)
+                throw new SSLPeerUnverifiedException("Approov pins are not available");
+        }
+
+        // check the connection against the current pins for the host of the request if it has not been
+        // checked against them already. A failed check leaves the connection to OkHttp, as it may be shared
+        // by requests to other hosts that it is still valid for.
+        String host = chain.request().url().host();
+        String digest = currentPins.getDigest();
+        ConcurrentHashMap<String, String> checkedHosts = checkedConnections.get(connection);
+        if ((checkedHosts == null) || !digest.equals(checkedHosts.get(host))) {
+            currentPins.getCertificatePinner().check(host, handshake.peerCertificates());
+            if (checkedHosts == null) {
+                pruneClosedConnections();
+                ConcurrentHashMap<String, String> newCheckedHosts = new ConcurrentHashMap<>();
+                checkedHosts = checkedConnections.putIfAbsent(connection, newCheckedHosts);
+                if (checkedHosts == null)
+                    checkedHosts = newCheckedHosts;
+            }
+            checkedHosts.put(host, digest);
+        }
+        return chain.proceed(chain.request());
+    }
+
+    /**
+     * Discards the tracking of connections that have been closed, if enough connections are being tracked.
+     */
+    private void pruneClosedConnections() {
+        if (checkedConnections.size() < pruneSize)
+            return;
+        Iterator<Connection> iterator = checkedConnections.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().socket().isClosed())
+                iterator.remove();
+        }
+        pruneSize = Math.max(MIN_PRUNE_SIZE, checkedConnections.size() * 2);
+    }
+}
@@ -0,0 +1,340 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import okhttp3.HttpUrl;
+
+// ExclusionMatcher determines if a URL matches any of the exclusions. Structured host, host suffix and
+// path prefix exclusions are indexed by host so that they are determined with simple lookups. Exclusion
+// regular expressions that are anchored to a particular host, such as "^https://api\\.example\\.com/", are
+// only matched against URLs that could have that host, so requests to hosts that no exclusion can match need
+// no regular expression matching at all. Rather than matching each of the other expressions in turn they are
+// compiled into a single alternation, so that each URL is checked with a single matcher in a single pass
+// regardless of the number of exclusions.
+final class ExclusionMatcher {
+    // logging tag
+    private static final String TAG = "ApproovExclusion";
+
+    // set of hosts that are excluded
+    private final Set<String> hosts;
+
+    // set of host suffixes whose hosts and subdomains are excluded
+    private final Set<String> hostSuffixes;
+
+    // map of hosts to the path prefixes that are excluded on them
+    private final Map<String, List<String>> pathPrefixes;
+
+    // true if there are any structured exclusions
+    private final boolean hasStructuredExclusions;
+
+    // finds constructs that depend on group numbering or naming and so cannot be combined
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+
+    // matches the anchored scheme at the start of an expression that may be indexed by host
+    private static final Pattern ANCHORED_SCHEME = Pattern.compile("^\\^https?(?:s\\?)?:(?://|\\\\/\\\\/)");
+
+    // map of hosts to the expressions anchored to exactly that host
+    private final Map<String, List<Pattern>> literalHostPatterns;
+
+    // expressions anchored to a host that includes unescaped dots, which match any character
+    private final List<HostPattern> wildcardHostPatterns;
+
+    // the combined pattern for all of the other exclusions that can be combined, or null if there are none
+    private final Pattern combinedPattern;
+
+    // other patterns that must be matched individually as they cannot be combined
+    private final List<Pattern> separatePatterns;
+
+    /**
+     * Constructs a matcher for the given exclusions. The provided collections are copied so later changes
+     * to them are not reflected.
+     *
+     * @param patterns are the compiled exclusion URL patterns
+     * @param hosts are the excluded hosts
+     * @param hostSuffixes are the host suffixes whose hosts and subdomains are excluded
+     * @param pathPrefixes maps hosts to the path prefixes that are excluded on them
+     */
+    ExclusionMatcher(Collection<Pattern> patterns, Set<String> hosts, Set<String> hostSuffixes,
+                     Map<String, Set<String>> pathPrefixes) {
+        // copy the structured exclusions
+        this.hosts = new HashSet<>(hosts);
+        this.hostSuffixes = new HashSet<>(hostSuffixes);
+        this.pathPrefixes = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry: pathPrefixes.entrySet())
+            this.pathPrefixes.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        hasStructuredExclusions = !this.hosts.isEmpty() || !this.hostSuffixes.isEmpty() || !this.pathPrefixes.isEmpty();
+
+        // index the patterns anchored to a host, and build an alternation of all of the others with each
+        // in its own group so that any inline flags only apply to that pattern
+        literalHostPatterns = new HashMap<>();
+        wildcardHostPatterns = new ArrayList<>();
+        List<Pattern> others = new ArrayList<>();
+        List<Pattern> separate = new ArrayList<>();
+        StringBuilder combined = new StringBuilder();
+        for (Pattern pattern: patterns) {
+            HostPattern hostPattern = HostPattern.parse(pattern);
+            if ((hostPattern != null) && hostPattern.hasWildcards())
+                wildcardHostPatterns.add(hostPattern);
+            else if (hostPattern != null) {
+                List<Pattern> hostPatterns = literalHostPatterns.get(hostPattern.getHost());
+                if (hostPatterns == null) {
+                    hostPatterns = new ArrayList<>();
+                    literalHostPatterns.put(hostPattern.getHost(), hostPatterns);
+                }
+                hostPatterns.add(pattern);
+            }
+            else {
+                others.add(pattern);
+                if (GROUP_REFERENCE.matcher(pattern.pattern()).find())
+                    separate.add(pattern);
+                else {
+                    if (combined.length() != 0)
+                        combined.append('|');
+                    combined.append("(?:").append(pattern.pattern()).append(')');
+                }
+            }
+        }
+
+        // compile the combined pattern, falling back to individual matching if that is not possible
+        Pattern combinedPattern = null;
+        if (combined.length() != 0) {
+            try {
+                combinedPattern = Pattern.compile(combined.toString());
+            }
+            catch (PatternSyntaxException e) {
+                Log.e(TAG, "Unable to combine exclusion URL regexs: " + e.getMessage());
+                separate = others;
+            }
+        }
+        this.combinedPattern = combinedPattern;
+        this.separatePatterns = separate;
+    }
+
+    /**
+     * Normalizes a host suffix so that it can be compared with the domains of a host.
+     *
+     * @param hostSuffix is the host suffix to be normalized
+     * @return the host suffix in lower case without any leading dot
+     */
+    static String normalizeHostSuffix(String hostSuffix) {
+        hostSuffix = hostSuffix.toLowerCase(Locale.US);
+        if (hostSuffix.startsWith("."))
+            hostSuffix = hostSuffix.substring(1);
+        return hostSuffix;
+    }
+
+    /**
+     * Determines if the given URL matches any of the exclusions.
+     *
+     * @param url is the URL to be checked
+     * @return true if the URL matches an exclusion
+     */
+    boolean matches(HttpUrl url) {
+        String host = url.host();
+        if (hasStructuredExclusions && (isHostExcluded(host) || isPathExcluded(host, url.encodedPath())))
+            return true;
+
+        // only the expressions anchored to a host that the URL could have need to be matched, along with any
+        // others
+        String urlString = url.toString();
+        List<Pattern> hostPatterns = literalHostPatterns.isEmpty() ? null : literalHostPatterns.get(host);
+        if (hostPatterns != null) {
+            for (Pattern pattern: hostPatterns) {
+                if (pattern.matcher(urlString).find())
+                    return true;
+            }
+        }
+        for (HostPattern hostPattern: wildcardHostPatterns) {
+            if (hostPattern.couldMatch(urlString) && hostPattern.pattern.matcher(urlString).find())
+                return true;
+        }
+        if ((combinedPattern != null) && combinedPattern.matcher(urlString).find())
+            return true;
+        for (Pattern pattern: separatePatterns) {
+            if (pattern.matcher(urlString).find())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the given host is excluded, either directly or by being within an excluded domain.
+     *
+     * @param host is the host to be checked
+     * @return true if the host is excluded
+     */
+    private boolean isHostExcluded(String host) {
+        if (hosts.contains(host))
+            return true;
+        if (hostSuffixes.isEmpty())
+            return false;
+
+        // check the host and each of its parent domains against the excluded suffixes
+        String domain = host;
+        while (true) {
+            if (hostSuffixes.contains(domain))
+                return true;
+            int dot = domain.indexOf('.');
+            if (dot < 0)
+                return false;
+            domain = domain.substring(dot + 1);
+        }
+    }
+
+    /**
+     * Determines if the given path is excluded on the host.
+     *
+     * @param host is the host of the URL
+     * @param path is the encoded path of the URL
+     * @return true if the path is excluded on the host
+     */
+    private boolean isPathExcluded(String host, String path) {
+        List<String> prefixes = pathPrefixes.get(host);
+        if (prefixes != null) {
+            for (String prefix: prefixes) {
+                if (path.startsWith(prefix))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // HostPattern is an exclusion expression that can only match URLs with a particular host, as it is anchored
+    // to the start of the URL with a literal scheme and host followed by a path. Any unescaped dot in the host
+    // matches any character, as in the expression itself, so the characters of the URL following the scheme
+    // are checked rather than the host itself as the dot might also match a delimiter.
+    private static final class HostPattern {
+        // the exclusion expression
+        final Pattern pattern;
+
+        // the host characters that must be matched, valid where they are not wildcards
+        private final char[] hostChars;
+
+        // true for each of the host characters that is an unescaped dot and so matches any character
+        private final boolean[] wildcards;
+
+        private HostPattern(Pattern pattern, char[] hostChars, boolean[] wildcards) {
+            this.pattern = pattern;
+            this.hostChars = hostChars;
+            this.wildcards = wildcards;
+        }
+
+        /**
+         * Parses the host from an exclusion expression. Only expressions of a simple form are indexed, and
+         * any that might match URLs of other hosts, such as those with alternations, flags or a host that is
+         * not followed by a path, are not.
+         *
+         * @param pattern is the exclusion expression
+         * @return the pattern indexed by its host, or null if it may match any host
+         */
+        static HostPattern parse(Pattern pattern) {
+            String regex = pattern.pattern();
+            Matcher scheme = ANCHORED_SCHEME.matcher(regex);
+            if ((pattern.flags() != 0) || (regex.indexOf('|') >= 0) || !scheme.find())
+                return null;
+            StringBuilder hostChars = new StringBuilder();
+            List<Boolean> wildcards = new ArrayList<>();
+            int i = scheme.end();
+            while (i < regex.length()) {
+                char c = regex.charAt(i);
+                char next = (i + 1 < regex.length()) ? regex.charAt(i + 1) : 0;
+                if ((c == '\\') && ((next == '.') || (next == '-'))) {
+                    hostChars.append(next);
+                    wildcards.add(false);
+                    i += 2;
+                }
+                else if ((c == '.') || (c == '-') || ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) ||
+                        ((c >= '0') && (c <= '9'))) {
+                    hostChars.append(c);
+                    wildcards.add(c == '.');
+                    i++;
+                }
+                else
+                    break;
+
+                // a quantifier means the host is not literal
+                if ((i < regex.length()) && ("?*+{".indexOf(regex.charAt(i)) >= 0))
+                    return null;
+            }
+
+            // the host must be followed by a path, or the end of the URL, so that it cannot be a prefix of another
+            // host or the user information
+            boolean terminated = regex.startsWith("/", i) || regex.startsWith("\\/", i) ||
+                    regex.substring(i).equals("$");
+            if ((hostChars.length() == 0) || !terminated)
+                return null;
+            boolean[] wildcardFlags = new boolean[wildcards.size()];
+            for (int j = 0; j < wildcardFlags.length; j++)
+                wildcardFlags[j] = wildcards.get(j);
+            return new HostPattern(pattern, hostChars.toString().toCharArray(), wildcardFlags);
+        }
+
+        /**
+         * Gets the host that the expression is anchored to.
+         *
+         * @return the host, with any unescaped dots
+         */
+        String getHost() {
+            return new String(hostChars);
+        }
+
+        /**
+         * Determines if the host of the expression includes any unescaped dots that match any character.
+         *
+         * @return true if there are unescaped dots
+         */
+        boolean hasWildcards() {
+            for (boolean wildcard: wildcards) {
+                if (wildcard)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Determines if the expression could match a URL, by checking the characters following its scheme.
+         *
+         * @param urlString is the URL
+         * @return true if the expression could match the URL
+         */
+        boolean couldMatch(String urlString) {
+            int start = urlString.indexOf("://") + 3;
+            if ((start < 3) || (urlString.length() - start <= hostChars.length))
+                return false;
+            for (int i = 0; i < hostChars.length; i++) {
+                if (!wildcards[i] && (urlString.charAt(start + i) != hostChars[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// HostStatusCache remembers the hosts for which an Approov token fetch reported that the host is not
+// protected by Approov, so that later requests to them do not need to call into the SDK at all. Entries are
+// discarded whenever the dynamic configuration changes, as that may change which hosts are protected, and
+// also after a limited lifetime so that requests to these hosts still occasionally check with the SDK, which
+// is how configuration changes are discovered.
+final class HostStatusCache {
+    // maximum number of hosts held, beyond which the cache is simply cleared
+    private static final int MAX_HOSTS = 256;
+
+    // lifetime of an entry before the host is checked with the SDK again
+    private static final long ENTRY_LIFETIME_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // cached results for the unprotected hosts
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // number of token fetches that were avoided by using a cached result
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Gets any cached result for a host that is known not to be protected by Approov.
+     *
+     * @param host is the host being requested
+     * @return the cached result for the host, or null if the SDK must be called
+     */
+    ApproovSdk.Result get(String host) {
+        Entry entry = entries.get(host);
+        if (entry == null)
+            return null;
+        if ((System.nanoTime() - entry.expiryNanos) >= 0) {
+            entries.remove(host, entry);
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * Records the result of an Approov token fetch for a host, caching it if it shows that the host is not
+     * protected by Approov. Results indicating configuration or pinning changes are never cached, and nor is
+     * NO_APPROOV_SERVICE, as that may be a transient condition of the Approov service.
+     *
+     * @param host is the host that was requested
+     * @param approovResults is the result of the token fetch for the host
+     */
+    void record(String host, ApproovSdk.Result approovResults) {
+        ApproovSdk.Status status = approovResults.getStatus();
+        if (((status != ApproovSdk.Status.UNKNOWN_URL) && (status != ApproovSdk.Status.UNPROTECTED_URL)) ||
+                approovResults.isConfigChanged() || approovResults.isForceApplyPins())
+            return;
+        if (entries.size() >= MAX_HOSTS)
+            entries.clear();
+        ApproovSdk.Result cachedResult = new ApproovSdk.Result(status, "", null, null, null,
+                approovResults.getLoggableToken(), false, false);
+        entries.put(host, new Entry(cachedResult, System.nanoTime() + ENTRY_LIFETIME_NANOS));
+    }
+
+    /**
+     * Clears all of the cached hosts.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of token fetches that were avoided by using a cached result.
+     *
+     * @return count of cache hits
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    // Entry holds the cached result for a host along with its expiry time
+    private static final class Entry {
+        // the result to be used for the host
+        final ApproovSdk.Result result;
+
+        // the System.nanoTime at which the entry expires
+        final long expiryNanos;
+
+        Entry(ApproovSdk.Result result, long expiryNanos) {
+            this.result = result;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+}
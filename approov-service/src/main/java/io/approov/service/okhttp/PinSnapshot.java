@@ -0,0 +1,111 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okhttp3.CertificatePinner;
+import okio.ByteString;
+
+// PinSnapshot holds the public key pins obtained from the Approov SDK at a point in time, in a canonical
+// form with the pins that apply to each domain resolved. A stable digest of the pins is provided so that
+// pin sets may be compared cheaply to determine whether anything has actually changed.
+final class PinSnapshot {
+    // map of each pinned domain to its sorted list of base64 encoded SHA256 public key pins, in domain order
+    private final Map<String, List<String>> pins;
+
+    // hex encoded SHA256 digest of the canonical pins
+    private final String digest;
+
+    // CertificatePinner that enforces the pins
+    private final CertificatePinner certificatePinner;
+
+    /**
+     * Constructs a snapshot of the pins provided by the Approov SDK. The "*" domain holds any managed
+     * trust roots, which are not pinned directly but are used for any domain that has no pins of its own.
+     *
+     * @param allPins is the map of domains to pins obtained from the Approov SDK
+     */
+    PinSnapshot(Map<String, List<String>> allPins) {
+        Map<String, List<String>> pins = new TreeMap<>();
+        List<String> managedTrustRoots = allPins.get("*");
+        for (Map.Entry<String, List<String>> entry: allPins.entrySet()) {
+            String domain = entry.getKey();
+            if (!domain.equals("*")) {
+                // if there are no pins then we try and use any managed trust roots
+                List<String> domainPins = entry.getValue();
+                if (domainPins.isEmpty() && (managedTrustRoots != null))
+                    domainPins = managedTrustRoots;
+                List<String> sortedPins = new ArrayList<>(domainPins);
+                Collections.sort(sortedPins);
+                pins.put(domain, Collections.unmodifiableList(sortedPins));
+            }
+        }
+        this.pins = Collections.unmodifiableMap(pins);
+
+        // form the digest from a canonical string representation of the pins
+        StringBuilder canonical = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry: pins.entrySet()) {
+            canonical.append(entry.getKey()).append('\n');
+            for (String pin: entry.getValue())
+                canonical.append(pin).append('\n');
+            canonical.append('\n');
+        }
+        this.digest = ByteString.encodeUtf8(canonical.toString()).sha256().hex();
+
+        // build the pinner for the pins
+        CertificatePinner.Builder pinBuilder = new CertificatePinner.Builder();
+        for (Map.Entry<String, List<String>> entry: pins.entrySet()) {
+            for (String pin: entry.getValue())
+                pinBuilder.add(entry.getKey(), "sha256/" + pin);
+        }
+        this.certificatePinner = pinBuilder.build();
+    }
+
+    /**
+     * Gets the pins for each of the pinned domains.
+     *
+     * @return map of domains to their base64 encoded SHA256 public key pins
+     */
+    Map<String, List<String>> getPins() {
+        return pins;
+    }
+
+    /**
+     * Gets a digest of the pins that is equal for any two snapshots holding the same pins.
+     *
+     * @return hex encoded SHA256 digest of the pins
+     */
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Gets a CertificatePinner that enforces the pins. This uses the same host matching rules, including
+     * wildcard domains, as when the pins are set on an OkHttpClient.
+     *
+     * @return the CertificatePinner for the pins
+     */
+    CertificatePinner getCertificatePinner() {
+        return certificatePinner;
+    }
+}
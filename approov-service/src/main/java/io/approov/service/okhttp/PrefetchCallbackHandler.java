@@ -0,0 +1,74 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+/**
+ * Callback handler for prefetching. We simply log as we don't need the result
+ * itself, as it will be returned as a cached value on a subsequent fetch. Any
+ * configuration change reported to the prefetch is acted upon, and prefetched
+ * secure strings are also added to the cache used for substitutions.
+ */
+final class PrefetchCallbackHandler implements ApproovSdk.Callback {
+    // logging tag
+    private static final String TAG = "ApproovPrefetch";
+
+    // the secure string key being prefetched, or null for a token prefetch
+    private final String key;
+
+    // the cache to receive the prefetched secure string, or null for a token prefetch
+    private final SubstitutionCache cache;
+
+    // the generation of the cache when the prefetch was started
+    private final long cacheGeneration;
+
+    /**
+     * Constructs a handler for a token prefetch.
+     */
+    PrefetchCallbackHandler() {
+        this(null, null, 0);
+    }
+
+    /**
+     * Constructs a handler for a secure string prefetch.
+     *
+     * @param key is the secure string key being prefetched
+     * @param cache is the cache to receive the result, or null if it should not be cached
+     * @param cacheGeneration is the generation of the cache when the prefetch was started
+     */
+    PrefetchCallbackHandler(String key, SubstitutionCache cache, long cacheGeneration) {
+        this.key = key;
+        this.cache = cache;
+        this.cacheGeneration = cacheGeneration;
+    }
+
+    @Override
+    public void approovCallback(ApproovSdk.Result result) {
+        ApproovService.onBackgroundFetch(result);
+        if (cache != null)
+            cache.put(key, result, cacheGeneration);
+        if ((result.getStatus() == ApproovSdk.Status.SUCCESS) ||
+            (result.getStatus() == ApproovSdk.Status.UNKNOWN_URL) ||
+            (result.getStatus() == ApproovSdk.Status.UNPROTECTED_URL) ||
+            (result.getStatus() == ApproovSdk.Status.UNKNOWN_KEY))
+            Log.d(TAG, "Prefetch success");
+        else
+            Log.e(TAG, "Prefetch failure: " + result.getStatus().toString());
+    }
+}
@@ -0,0 +1,250 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Prefetcher starts Approov token and secure string fetches in the background so that the results are already
+// cached by the SDK when they are next needed by a request. It remembers the protected hosts and secure string
+// keys that were used most recently and prefetches those, falling back to a placeholder domain before any
+// have been used. Prefetches triggered by app lifecycle or connectivity events are rate limited, as these may
+// occur in quick succession.
+final class Prefetcher {
+    // logging tag
+    private static final String TAG = "ApproovPrefetch";
+
+    // placeholder domain fetched when no protected hosts have been used yet
+    private static final String PLACEHOLDER_HOST = "approov.io";
+
+    // maximum number of recently used protected hosts that are remembered
+    private static final int MAX_HOSTS = 16;
+
+    // maximum number of recently used secure string keys that are remembered
+    private static final int MAX_KEYS = 32;
+
+    // minimum interval between prefetches triggered by events
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // interval within which repeated uses of the same host or key do not update its time of last use, so that
+    // recording the use by each request does not normally need to write to the map
+    private static final long USE_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // value of lastPrefetchNanos before any prefetch has been made
+    private static final long NEVER = Long.MIN_VALUE;
+
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // recently used protected hosts, mapped to the System.nanoTime at which they were last used
+    private final ConcurrentHashMap<String, Long> recentHosts = new ConcurrentHashMap<>();
+
+    // recently used secure string keys, mapped to the System.nanoTime at which they were last used
+    private final ConcurrentHashMap<String, Long> recentKeys = new ConcurrentHashMap<>();
+
+    // the System.nanoTime at which the last prefetch was made, or NEVER if there has been none
+    private final AtomicLong lastPrefetchNanos = new AtomicLong(NEVER);
+
+    // number of prefetches that have been made
+    private final AtomicLong prefetchCount = new AtomicLong();
+
+    // number of prefetches triggered by events that were skipped due to rate limiting
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * Constructs a prefetcher.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     */
+    Prefetcher(ApproovSdk sdk) {
+        this.sdk = sdk;
+    }
+
+    /**
+     * Records that a token was obtained for a request to a protected host.
+     *
+     * @param host is the host that was requested
+     */
+    void recordHost(String host) {
+        recordUse(recentHosts, MAX_HOSTS, host);
+    }
+
+    /**
+     * Records that a secure string was obtained for a request.
+     *
+     * @param key is the secure string key that was used
+     */
+    void recordSecureStringKey(String key) {
+        recordUse(recentKeys, MAX_KEYS, key);
+    }
+
+    /**
+     * Records the use of a host or key, discarding the least recently used entry if the map is full. This is
+     * called for every request, so it normally only reads the map. The size limit is approximate if there are
+     * concurrent additions.
+     *
+     * @param recent is the map of recently used entries to their time of last use
+     * @param maxEntries is the maximum number of entries to be held
+     * @param entry is the host or key that was used
+     */
+    private static void recordUse(ConcurrentHashMap<String, Long> recent, int maxEntries, String entry) {
+        long now = System.nanoTime();
+        Long lastUsed = recent.get(entry);
+        if ((lastUsed != null) && ((now - lastUsed) < USE_GRANULARITY_NANOS))
+            return;
+        if ((lastUsed == null) && (recent.size() >= maxEntries)) {
+            Map.Entry<String, Long> eldest = null;
+            for (Map.Entry<String, Long> candidate: recent.entrySet()) {
+                if ((eldest == null) || ((candidate.getValue() - eldest.getValue()) < 0))
+                    eldest = candidate;
+            }
+            if (eldest != null)
+                recent.remove(eldest.getKey(), eldest.getValue());
+        }
+        recent.put(entry, now);
+    }
+
+    /**
+     * Gets the entries of a map of recently used hosts or keys, in order of most recent use.
+     *
+     * @param recent is the map of recently used entries to their time of last use
+     * @return the entries, most recently used first
+     */
+    private static List<String> getMostRecent(ConcurrentHashMap<String, Long> recent) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(recent.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                long difference = second.getValue() - first.getValue();
+                return (difference < 0) ? -1 : ((difference == 0) ? 0 : 1);
+            }
+        });
+        List<String> mostRecent = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> entry: entries)
+            mostRecent.add(entry.getKey());
+        return mostRecent;
+    }
+
+    /**
+     * Triggers a prefetch due to an event, unless another prefetch was made too recently.
+     *
+     * @param reason describes the event for logging
+     * @return true if a prefetch was started, false if it was skipped
+     */
+    boolean trigger(String reason) {
+        // only one of any concurrent triggers may claim the prefetch
+        long now = System.nanoTime();
+        long lastPrefetch = lastPrefetchNanos.get();
+        if (((lastPrefetch != NEVER) && ((now - lastPrefetch) < MIN_INTERVAL_NANOS)) ||
+                !lastPrefetchNanos.compareAndSet(lastPrefetch, now)) {
+            skippedCount.incrementAndGet();
+            Log.d(TAG, "Prefetch on " + reason + " skipped");
+            return false;
+        }
+        Log.d(TAG, "Prefetch on " + reason);
+        startPrefetch();
+        return true;
+    }
+
+    /**
+     * Prefetches tokens for the recently used protected hosts and the recently used secure strings, or a
+     * token for the placeholder domain if no protected hosts have been used yet. The fetches are made in the
+     * background and their results are cached by the SDK.
+     */
+    void prefetch() {
+        lastPrefetchNanos.set(System.nanoTime());
+        startPrefetch();
+    }
+
+    /**
+     * Starts the fetches for a prefetch, with the most recently used hosts and keys being fetched first.
+     */
+    private void startPrefetch() {
+        prefetchCount.incrementAndGet();
+        List<String> hosts = getMostRecent(recentHosts);
+        if (hosts.isEmpty())
+            hosts.add(PLACEHOLDER_HOST);
+        AttestationExecutor executor = ApproovService.getAttestationExecutor();
+        for (String host: hosts) {
+            if (executor != null)
+                executor.fetchApproovToken(ApproovPriority.BACKGROUND, sdk, new PrefetchCallbackHandler(), host);
+            else
+                sdk.fetchApproovToken(new PrefetchCallbackHandler(), host);
+        }
+        for (String key: getMostRecent(recentKeys))
+            fetchSecureString(executor, key);
+    }
+
+    /**
+     * Prefetches the given secure strings, remembering the keys so that they are also included in
+     * subsequent prefetches.
+     *
+     * @param keys are the secure string keys to be prefetched
+     */
+    void prefetchSecureStrings(Collection<String> keys) {
+        AttestationExecutor executor = ApproovService.getAttestationExecutor();
+        for (String key: keys) {
+            recordSecureStringKey(key);
+            fetchSecureString(executor, key);
+        }
+    }
+
+    /**
+     * Starts a background fetch of a secure string, with the result also being added to the cache used for
+     * substitutions.
+     *
+     * @param executor is the attestation executor, or null if the SDK should be used directly
+     * @param key is the secure string key to be fetched
+     */
+    private void fetchSecureString(AttestationExecutor executor, String key) {
+        SubstitutionCache cache = ApproovService.getSubstitutionCache();
+        long generation = (cache == null) ? 0 : cache.getGeneration();
+        PrefetchCallbackHandler callback = new PrefetchCallbackHandler(key, cache, generation);
+        if (executor != null)
+            executor.fetchSecureString(ApproovPriority.BACKGROUND, sdk, callback, key, null);
+        else
+            sdk.fetchSecureString(callback, key, null);
+    }
+
+    /**
+     * Gets the number of prefetches that have been made.
+     *
+     * @return count of prefetches
+     */
+    long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /**
+     * Gets the number of prefetches triggered by events that were skipped due to rate limiting.
+     *
+     * @return count of skipped prefetches
+     */
+    long getSkippedCount() {
+        return skippedCount.get();
+    }
+}
@@ -0,0 +1,85 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+
+// ReplayCanceller propagates the cancellation of a call to the call that replays its request on a rebuilt
+// OkHttpClient. OkHttp provides no notification when a call is canceled, or when its timeout expires and it
+// is canceled as a result, so the original call is polled while the replay is in progress. A cancellation
+// therefore reaches the replay up to POLL_MILLIS after the original call was canceled, rather than
+// immediately. A timeout of the original call is not affected by this, as the replay is given its own
+// timeout for the time remaining in the original call.
+final class ReplayCanceller {
+    // interval at which the original call is checked for cancellation
+    private static final long POLL_MILLIS = 50;
+
+    // single background thread shared by all replays to check for cancellation
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    /**
+     * Creates the scheduler used to check for cancellation, with watches that are stopped being removed
+     * immediately so they do not accumulate in its queue.
+     *
+     * @return the scheduler
+     */
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovReplayCanceller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Watches an original call so that its replay is canceled if it is canceled, which is observed within
+     * POLL_MILLIS. The replay is also given a timeout of the time remaining before the original call's
+     * timeout or deadline, so that it cannot outlive it even if the cancellation is not observed. This must be
+     * called on the thread executing the original call.
+     *
+     * @param original is the original call whose request is being replayed
+     * @param replay is the call replaying the request, which must not have been executed yet
+     * @return the watch, which must be canceled once the replay has completed
+     */
+    static ScheduledFuture<?> watch(final Call original, final Call replay) {
+        replay.timeout().timeout(CallStartInterceptor.getRemainingNanos(original), TimeUnit.NANOSECONDS);
+        return scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (original.isCanceled())
+                    replay.cancel();
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Construction is disallowed as this is a static only class.
+     */
+    private ReplayCanceller() {
+    }
+}
@@ -0,0 +1,126 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+// SecureStringBatch fetches a number of secure strings concurrently using the callback based fetches, so
+// that the time taken is that of the slowest fetch rather than the sum of the times for each of them.
+final class SecureStringBatch {
+    // results of the fetches that have completed, mapped from their keys
+    private final Map<String, ApproovSdk.Result> results = new HashMap<>();
+
+    // latch that is released when all of the fetches have completed
+    private final CountDownLatch done;
+
+    // the first exception thrown by the SDK when starting a fetch, or null if none
+    private RuntimeException exception;
+
+    /**
+     * Constructs a batch.
+     *
+     * @param size is the number of fetches in the batch
+     */
+    private SecureStringBatch(int size) {
+        done = new CountDownLatch(size);
+    }
+
+    /**
+     * Starts fetches for all of the given secure string keys. These are run on any attestation executor,
+     * otherwise they are made using the SDK directly.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param keys are the secure string keys to be looked up
+     * @param priority is the priority of the fetches on any attestation executor
+     * @return the batch, which may be used to wait for the results
+     */
+    static SecureStringBatch start(ApproovSdk sdk, Collection<String> keys, ApproovPriority priority) {
+        SecureStringBatch batch = new SecureStringBatch(keys.size());
+        AttestationExecutor executor = ApproovService.getAttestationExecutor();
+        for (String key: keys) {
+            ApproovSdk.Callback callback = batch.new ResultCallback(key);
+            try {
+                if (executor != null)
+                    executor.fetchSecureString(priority, sdk, callback, key, null);
+                else
+                    sdk.fetchSecureString(callback, key, null);
+            }
+            catch (RuntimeException e) {
+                batch.failed(e);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Waits for all of the fetches in the batch to complete.
+     *
+     * @return the results of the fetches, mapped from their keys
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     * @throws RuntimeException if the SDK threw an exception when starting any of the fetches
+     */
+    Map<String, ApproovSdk.Result> await() throws InterruptedIOException {
+        try {
+            done.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for secure string fetches");
+        }
+        synchronized (this) {
+            if (exception != null)
+                throw exception;
+            return new HashMap<>(results);
+        }
+    }
+
+    /**
+     * Records that a fetch could not be started.
+     *
+     * @param e is the exception thrown by the SDK
+     */
+    private void failed(RuntimeException e) {
+        synchronized (this) {
+            if (exception == null)
+                exception = e;
+        }
+        done.countDown();
+    }
+
+    // ResultCallback receives the result of one of the fetches in the batch
+    private final class ResultCallback implements ApproovSdk.Callback {
+        // the key of the secure string being fetched
+        private final String key;
+
+        ResultCallback(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void approovCallback(ApproovSdk.Result approovResults) {
+            synchronized (SecureStringBatch.this) {
+                results.put(key, approovResults);
+            }
+            done.countDown();
+        }
+    }
+}
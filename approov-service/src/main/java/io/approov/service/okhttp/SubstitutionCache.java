@@ -0,0 +1,134 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SubstitutionCache holds the results of the secure string lookups made for header and query parameter
+// substitutions, so that repeated substitutions of the same key do not need to call into the SDK. It is held
+// only in memory and is never persisted. The whole cache is invalidated whenever the dynamic configuration
+// changes or a rejection is seen, as either may change the secure strings that should be provided. Entries
+// also expire after the lifetime of an Approov token, so that a secure string is not provided for longer than
+// a token fetched with it would be valid without the SDK being consulted again, which is how configuration
+// changes and rejections are discovered. Each
+// invalidation starts a new generation, and results from fetches started in an earlier generation are
+// discarded so that an invalidation cannot be undone by a fetch that was already in progress.
+final class SubstitutionCache {
+    // maximum number of keys held, beyond which the cache is simply cleared
+    private static final int MAX_KEYS = 128;
+
+    // lifetime of an entry before the key is fetched from the SDK again, which is that of an Approov token
+    private static final long ENTRY_LIFETIME_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // cached results for the secure string keys
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // the current generation, which is incremented by each invalidation
+    private final AtomicLong generation = new AtomicLong();
+
+    // number of secure string fetches that were avoided by using a cached result
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Gets any cached result for a secure string key.
+     *
+     * @param key is the secure string key
+     * @return the cached result, or null if the SDK must be called
+     */
+    ApproovSdk.Result get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if ((System.nanoTime() - entry.expiryNanos) >= 0) {
+            entries.remove(key, entry);
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.result;
+    }
+
+    /**
+     * Gets the current generation of the cache. This must be obtained before starting a fetch whose result
+     * is to be cached.
+     *
+     * @return the current generation
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Records the result of a secure string fetch, caching it if it is a definitive result for the key and
+     * the cache has not been invalidated since the fetch was started.
+     *
+     * @param key is the secure string key that was fetched
+     * @param approovResults is the result of the fetch
+     * @param fetchGeneration is the generation of the cache when the fetch was started
+     */
+    void put(String key, ApproovSdk.Result approovResults, long fetchGeneration) {
+        ApproovSdk.Status status = approovResults.getStatus();
+        if (approovResults.isConfigChanged()) {
+            clear();
+            return;
+        }
+        if (((status != ApproovSdk.Status.SUCCESS) && (status != ApproovSdk.Status.UNKNOWN_KEY)) ||
+                (fetchGeneration != generation.get()))
+            return;
+        if (entries.size() >= MAX_KEYS)
+            entries.clear();
+        Entry entry = new Entry(approovResults, System.nanoTime() + ENTRY_LIFETIME_NANOS);
+        entries.put(key, entry);
+
+        // remove the entry again if there was an invalidation while it was being added
+        if (fetchGeneration != generation.get())
+            entries.remove(key, entry);
+    }
+
+    /**
+     * Invalidates all of the cached results, starting a new generation.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of secure string fetches that were avoided by using a cached result.
+     *
+     * @return count of cache hits
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    // Entry holds the cached result for a key along with its expiry time
+    private static final class Entry {
+        // the result to be used for the key
+        final ApproovSdk.Result result;
+
+        // the System.nanoTime at which the entry expires
+        final long expiryNanos;
+
+        Entry(ApproovSdk.Result result, long expiryNanos) {
+            this.result = result;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+}
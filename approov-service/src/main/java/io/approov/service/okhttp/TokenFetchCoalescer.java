@@ -0,0 +1,189 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+
+// TokenFetchCoalescer ensures that only a single Approov token fetch is in flight for a given host at any
+// one time. Any other requests for the same host that arrive while the fetch is in progress wait for, and
+// share, the result of that fetch rather than each making their own call into the SDK. Each waiter has its
+// own deadline and stops waiting if its call is canceled.
+final class TokenFetchCoalescer {
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // fetches currently in flight, keyed by the host and any binding data for the fetch
+    private final ConcurrentHashMap<String, PendingFetch> pendingFetches = new ConcurrentHashMap<>();
+
+    // number of token fetches actually made to the Approov SDK
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    // number of token fetches that were satisfied by waiting on another in flight fetch
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Constructs a coalescer for token fetches.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     */
+    TokenFetchCoalescer(ApproovSdk sdk) {
+        this.sdk = sdk;
+    }
+
+    /**
+     * Fetches an Approov token for the given host, waiting for the result. If a fetch is already in
+     * progress for the same host and binding data then the result of that is shared rather than a new
+     * fetch being made. The fetch itself is made asynchronously, so the wait can be abandoned if the call
+     * is canceled or the timeout expires, with the fetch still completing for any other waiters. Note that
+     * any data hash for token binding must have been set in the SDK before this is called.
+     *
+     * @param host is the host for which the token is required
+     * @param bindingData is any data that has been set for token binding, or null if none
+     * @param call is the call for which the token is required, whose cancellation ends the wait
+     * @param timeoutNanos is the maximum time to wait in nanoseconds, or 0 for no limit
+     * @param executor is the executor on which the fetch should be run, or null to use the SDK directly
+     * @param priority is the priority of the fetch on the executor
+     * @return the result of the Approov token fetch
+     * @throws ApproovTimeoutException if the timeout expired before the fetch completed
+     * @throws IOException if the call was canceled or the thread was interrupted while waiting
+     */
+    ApproovSdk.Result fetchApproovToken(String host, String bindingData, Call call, long timeoutNanos,
+                                        AttestationExecutor executor, ApproovPriority priority) throws IOException {
+        // requests with different binding data cannot share a token as the data hash differs
+        final String key = (bindingData == null) ? host : host + '\n' + bindingData;
+
+        // wait for any existing fetch for the same key
+        final PendingFetch pendingFetch = new PendingFetch();
+        PendingFetch existingFetch = pendingFetches.putIfAbsent(key, pendingFetch);
+        if (existingFetch != null) {
+            coalescedCount.incrementAndGet();
+            return existingFetch.await(host, call, timeoutNanos);
+        }
+
+        // we are responsible for starting the fetch, which publishes the result to all waiters
+        fetchCount.incrementAndGet();
+        ApproovSdk.Callback callback = new ApproovSdk.Callback() {
+            @Override
+            public void approovCallback(ApproovSdk.Result result) {
+                pendingFetches.remove(key, pendingFetch);
+                pendingFetch.complete(result, null);
+            }
+        };
+        try {
+            if (executor != null)
+                executor.fetchApproovToken(priority, sdk, callback, host);
+            else
+                sdk.fetchApproovToken(callback, host);
+        }
+        catch (RuntimeException e) {
+            pendingFetches.remove(key, pendingFetch);
+            pendingFetch.complete(null, e);
+            throw e;
+        }
+        return pendingFetch.await(host, call, timeoutNanos);
+    }
+
+    /**
+     * Gets the number of token fetches that have actually been made to the Approov SDK.
+     *
+     * @return count of fetches made
+     */
+    long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /**
+     * Gets the number of token fetches that were satisfied by sharing the result of another fetch.
+     *
+     * @return count of coalesced fetches
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    // PendingFetch holds the eventual result of a single in flight fetch
+    private static final class PendingFetch {
+        // interval at which a waiter checks whether its call has been canceled
+        private static final long CANCEL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+        // latch that is released when the fetch completes
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // the result of the fetch, valid once the latch is released
+        private volatile ApproovSdk.Result result;
+
+        // any exception thrown by the SDK during the fetch, valid once the latch is released
+        private volatile RuntimeException exception;
+
+        /**
+         * Completes the fetch, releasing any waiters.
+         *
+         * @param result is the result of the fetch, or null if it failed
+         * @param exception is any exception raised by the fetch, or null if it succeeded
+         */
+        void complete(ApproovSdk.Result result, RuntimeException exception) {
+            this.result = result;
+            this.exception = exception;
+            done.countDown();
+        }
+
+        /**
+         * Waits for the fetch to complete, for no longer than the timeout and only while the call has not
+         * been canceled.
+         *
+         * @param host is the host for which the token is being fetched
+         * @param call is the call for which the token is required
+         * @param timeoutNanos is the maximum time to wait in nanoseconds, or 0 for no limit
+         * @return the result of the fetch
+         * @throws ApproovTimeoutException if the timeout expired before the fetch completed
+         * @throws IOException if the call was canceled or the thread was interrupted while waiting
+         */
+        ApproovSdk.Result await(String host, Call call, long timeoutNanos) throws IOException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            try {
+                while (true) {
+                    long waitNanos = CANCEL_POLL_NANOS;
+                    if (timeoutNanos > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            throw new ApproovTimeoutException("Approov token fetch for " + host + ": timed out");
+                        waitNanos = Math.min(waitNanos, remaining);
+                    }
+                    if (done.await(waitNanos, TimeUnit.NANOSECONDS))
+                        break;
+                    if (call.isCanceled())
+                        throw new IOException("Canceled");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for Approov token fetch");
+            }
+            if (exception != null)
+                throw exception;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okio.ByteString;
+
+// TokenRefresher fetches a new Approov token in the background shortly before the token last obtained for a
+// recently used protected host expires. The SDK caches the refreshed token, so the next request to the host
+// finds a valid token already available rather than waiting for a new fetch on its critical path. Hosts that
+// have not been requested recently are not refreshed, so that no attestations are made for hosts the app is
+// no longer using.
+final class TokenRefresher {
+    // logging tag
+    private static final String TAG = "ApproovTokenRefresh";
+
+    // maximum number of hosts tracked, beyond which further hosts are not refreshed
+    private static final int MAX_HOSTS = 64;
+
+    // time since a host was last requested after which its token is no longer refreshed
+    private static final long RECENT_USE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    // minimum delay before a refresh, so that a token that is already about to expire is not fetched repeatedly
+    private static final long MIN_REFRESH_DELAY_MILLIS = 1000;
+
+    // pattern used to extract the expiry time from the token payload
+    private static final Pattern EXPIRY_PATTERN = Pattern.compile("\"exp\"\\s*:\\s*(\\d+)");
+
+    // facade used for all access to the Approov SDK
+    private final ApproovSdk sdk;
+
+    // time before the expiry of a token at which it is refreshed
+    private final long leadTimeMillis;
+
+    // scheduler on which the refreshes are started
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // refresh state for each of the protected hosts that has been requested
+    private final ConcurrentHashMap<String, HostEntry> hosts = new ConcurrentHashMap<>();
+
+    // number of background token refreshes that have been started
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Constructs a refresher for tokens.
+     *
+     * @param sdk is the facade used for access to the Approov SDK
+     * @param leadTimeMillis is the time before the expiry of a token at which it is refreshed
+     */
+    TokenRefresher(ApproovSdk sdk, long leadTimeMillis) {
+        this.sdk = sdk;
+        this.leadTimeMillis = leadTimeMillis;
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovTokenRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Records the result of a token fetch made for a request to a host, scheduling a refresh of the token
+     * ahead of its expiry if one was obtained. This is called for every request to a protected host, so the
+     * common case of the same token being obtained again is handled without parsing the token or locking.
+     *
+     * @param host is the host that was requested
+     * @param approovResults is the result of the token fetch for the host
+     */
+    void record(String host, ApproovSdk.Result approovResults) {
+        if (approovResults.getStatus() != ApproovSdk.Status.SUCCESS)
+            return;
+        String token = approovResults.getToken();
+        HostEntry entry = hosts.get(host);
+        if ((entry != null) && token.equals(entry.lastToken)) {
+            entry.lastUsedNanos = System.nanoTime();
+            return;
+        }
+        long expiryMillis = getExpiryMillis(token);
+        if (expiryMillis == 0)
+            return;
+        if (entry == null) {
+            if (hosts.size() >= MAX_HOSTS)
+                return;
+            HostEntry newEntry = new HostEntry(host);
+            entry = hosts.putIfAbsent(host, newEntry);
+            if (entry == null)
+                entry = newEntry;
+        }
+        entry.lastUsedNanos = System.nanoTime();
+        entry.schedule(expiryMillis, false);
+        entry.lastToken = token;
+    }
+
+    /**
+     * Stops all refreshes.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+        hosts.clear();
+    }
+
+    /**
+     * Gets the number of background token refreshes that have been started.
+     *
+     * @return count of refreshes
+     */
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Gets the expiry time of a token from the "exp" claim in its payload.
+     *
+     * @param token is the JWT token
+     * @return the expiry time in milliseconds since the epoch, or 0 if it could not be determined
+     */
+    static long getExpiryMillis(String token) {
+        int payloadStart = token.indexOf('.');
+        int payloadEnd = token.indexOf('.', payloadStart + 1);
+        if ((payloadStart < 0) || (payloadEnd < 0))
+            return 0;
+        ByteString payload = ByteString.decodeBase64(token.substring(payloadStart + 1, payloadEnd));
+        if (payload == null)
+            return 0;
+        Matcher matcher = EXPIRY_PATTERN.matcher(payload.utf8());
+        if (!matcher.find())
+            return 0;
+        try {
+            return Long.parseLong(matcher.group(1)) * 1000;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // HostEntry holds the refresh state for a single host
+    private final class HostEntry implements Runnable, ApproovSdk.Callback {
+        // the host whose token is refreshed
+        private final String host;
+
+        // the System.nanoTime at which the host was last requested
+        volatile long lastUsedNanos;
+
+        // the token for which the refresh is scheduled, or null if no refresh is scheduled
+        volatile String lastToken;
+
+        // expiry time of the token for which the refresh is scheduled, in milliseconds since the epoch
+        private long expiryMillis;
+
+        // the scheduled refresh, or null if there is none
+        private ScheduledFuture<?> refresh;
+
+        HostEntry(String host) {
+            this.host = host;
+        }
+
+        /**
+         * Schedules a refresh ahead of the expiry of a token. If the expiry is too close for that then the
+         * refresh is made at the expiry, when the SDK must obtain a new token.
+         *
+         * @param tokenExpiryMillis is the expiry time of the token in milliseconds since the epoch
+         * @param force is true if a refresh should be scheduled even if one is already scheduled for the expiry
+         */
+        synchronized void schedule(long tokenExpiryMillis, boolean force) {
+            if (!force && (tokenExpiryMillis == expiryMillis) && (refresh != null))
+                return;
+            if (refresh != null)
+                refresh.cancel(false);
+            expiryMillis = tokenExpiryMillis;
+            long now = System.currentTimeMillis();
+            long delayMillis = tokenExpiryMillis - leadTimeMillis - now;
+            if (delayMillis < MIN_REFRESH_DELAY_MILLIS)
+                delayMillis = Math.max(tokenExpiryMillis - now, MIN_REFRESH_DELAY_MILLIS);
+            try {
+                refresh = scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException e) {
+                // the refresher has been shut down
+                refresh = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            // stop refreshing hosts that are no longer being used
+            if ((System.nanoTime() - lastUsedNanos) > RECENT_USE_NANOS) {
+                synchronized (this) {
+                    refresh = null;
+                }
+                hosts.remove(host, this);
+                return;
+            }
+
+            // fetch a new token, which is then cached by the SDK
+            refreshCount.incrementAndGet();
+            Log.d(TAG, "Refreshing token for " + host);
+            try {
+                AttestationExecutor executor = ApproovService.getAttestationExecutor();
+                if (executor != null)
+                    executor.fetchApproovToken(ApproovPriority.BACKGROUND, sdk, this, host);
+                else
+                    sdk.fetchApproovToken(this, host);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "Token refresh for " + host + " failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void approovCallback(ApproovSdk.Result approovResults) {
+            ApproovService.onBackgroundFetch(approovResults);
+            if (approovResults.getStatus() != ApproovSdk.Status.SUCCESS) {
+                // the next request to the host will obtain a token and schedule another refresh
+                Log.d(TAG, "Token refresh for " + host + ": " + approovResults.getStatus().toString());
+                synchronized (this) {
+                    refresh = null;
+                    expiryMillis = 0;
+                }
+                lastToken = null;
+                return;
+            }
+            long tokenExpiryMillis = getExpiryMillis(approovResults.getToken());
+            if (tokenExpiryMillis != 0) {
+                schedule(tokenExpiryMillis, true);
+                lastToken = approovResults.getToken();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import android.content.Context;
+
+import java.util.List;
+import java.util.Map;
+
+// AndroidApproovSdk is an off-device replacement for the library class of the same name, since the Approov
+// SDK itself is not available on a plain JVM. Benchmarks initialize the service with a SimulatedApproovSdk
+// instead, so any use of this class indicates a benchmark that has not been set up correctly.
+final class AndroidApproovSdk implements ApproovSdk {
+
+    void initialize(Context context, String config) {
+        throw unavailable();
+    }
+
+    @Override
+    public void setDevKey(String devKey) {
+        throw unavailable();
+    }
+
+    @Override
+    public Result fetchApproovTokenAndWait(String url) {
+        throw unavailable();
+    }
+
+    @Override
+    public void fetchApproovToken(Callback callback, String url) {
+        throw unavailable();
+    }
+
+    @Override
+    public Result fetchSecureStringAndWait(String key, String newDef) {
+        throw unavailable();
+    }
+
+    @Override
+    public void fetchSecureString(Callback callback, String key, String newDef) {
+        throw unavailable();
+    }
+
+    @Override
+    public Result fetchCustomJWTAndWait(String payload) {
+        throw unavailable();
+    }
+
+    @Override
+    public Map<String, List<String>> getPins(String pinType) {
+        throw unavailable();
+    }
+
+    @Override
+    public String fetchConfig() {
+        throw unavailable();
+    }
+
+    @Override
+    public void setDataHashInToken(String data) {
+        throw unavailable();
+    }
+
+    @Override
+    public String getMessageSignature(String message) {
+        throw unavailable();
+    }
+
+    @Override
+    public String getDeviceID() {
+        throw unavailable();
+    }
+
+    private static IllegalStateException unavailable() {
+        return new IllegalStateException("Approov SDK is not available off-device, use SimulatedApproovSdk");
+    }
+}
@@ -0,0 +1,446 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.ByteString;
+
+// SimulatedApproovSdk is an in-process stand-in for the Approov SDK that makes no network requests. Fetches
+// complete after a configurable latency with a status drawn from a configurable distribution, and issue
+// well formed but unsigned tokens. This allows the service and its interceptors to be load tested and
+// benchmarked on a plain JVM, by initializing the service with ApproovService.initialize(ApproovSdk).
+final class SimulatedApproovSdk implements ApproovSdk {
+    // key used to produce message signatures
+    private static final ByteString SIGNING_KEY = ByteString.encodeUtf8("simulated-signing-key");
+
+    // minimum latency of each fetch in milliseconds
+    private volatile long minLatencyMillis;
+
+    // maximum latency of each fetch in milliseconds
+    private volatile long maxLatencyMillis;
+
+    // lifetime of issued tokens in seconds
+    private volatile long tokenLifetimeSeconds = 300;
+
+    // relative weights of the statuses for fetches, from which the status of each fetch is drawn
+    private final Map<Status, Integer> statusWeights = new EnumMap<>(Status.class);
+
+    // statuses for hosts that are not protected, mapped from the host
+    private final Map<String, Status> unprotectedHosts = new ConcurrentHashMap<>();
+
+    // defined secure strings mapped from their keys
+    private final Map<String, String> secureStrings = new ConcurrentHashMap<>();
+
+    // pins for the protected domains
+    private final Map<String, List<String>> pins = new ConcurrentHashMap<>();
+
+    // true if the next fetch should indicate a dynamic configuration change
+    private final AtomicBoolean configChanged = new AtomicBoolean();
+
+    // true if the next fetch should indicate that the pins must be applied
+    private final AtomicBoolean forceApplyPins = new AtomicBoolean();
+
+    // version of the dynamic configuration
+    private final AtomicInteger configVersion = new AtomicInteger();
+
+    // any data hash for inclusion in tokens, or null if none
+    private volatile String dataHash;
+
+    // the most recently issued token, which is reused until it is close to expiry or the data hash changes
+    private String cachedToken;
+
+    // the loggable form of the cached token
+    private String cachedLoggableToken;
+
+    // the data hash included in the cached token
+    private String cachedTokenDataHash;
+
+    // the time at which the cached token should no longer be reused, in milliseconds
+    private long cachedTokenRenewMillis;
+
+    // number of token fetches made
+    private final AtomicLong tokenFetchCount = new AtomicLong();
+
+    // number of secure string fetches made
+    private final AtomicLong secureStringFetchCount = new AtomicLong();
+
+    // number of times the data hash has been set
+    private final AtomicLong dataHashCount = new AtomicLong();
+
+    // executor for asynchronous fetches
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SimulatedApproovSdk");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Constructs a simulated SDK where all fetches succeed immediately.
+     */
+    SimulatedApproovSdk() {
+        statusWeights.put(Status.SUCCESS, 1);
+    }
+
+    /**
+     * Sets the range of latency for each fetch, with the latency of each being uniformly distributed
+     * within the range.
+     *
+     * @param minMillis is the minimum latency in milliseconds
+     * @param maxMillis is the maximum latency in milliseconds
+     */
+    void setLatency(long minMillis, long maxMillis) {
+        minLatencyMillis = minMillis;
+        maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * Sets the relative weight of a status in the distribution from which the status of each token and
+     * secure string fetch is drawn. A weight of zero removes the status from the distribution.
+     *
+     * @param status is the status whose weight is to be set
+     * @param weight is the relative weight of the status
+     */
+    void setStatusWeight(Status status, int weight) {
+        synchronized (statusWeights) {
+            if (weight <= 0)
+                statusWeights.remove(status);
+            else
+                statusWeights.put(status, weight);
+        }
+    }
+
+    /**
+     * Marks a host as not being protected, so that token fetches for it always provide the given status.
+     *
+     * @param host is the host that is not protected
+     * @param status is the status to be provided, such as UNKNOWN_URL or UNPROTECTED_URL
+     */
+    void setUnprotectedHost(String host, Status status) {
+        unprotectedHosts.put(host, status);
+    }
+
+    /**
+     * Defines a secure string.
+     *
+     * @param key is the secure string key
+     * @param value is the secure string value
+     */
+    void setSecureString(String key, String value) {
+        secureStrings.put(key, value);
+    }
+
+    /**
+     * Sets the pins for a protected domain.
+     *
+     * @param domain is the protected domain
+     * @param domainPins are the base64 encoded SHA256 hashes of the public keys to be pinned
+     */
+    void setPins(String domain, List<String> domainPins) {
+        pins.put(domain, new ArrayList<>(domainPins));
+    }
+
+    /**
+     * Sets the lifetime of issued tokens.
+     *
+     * @param seconds is the token lifetime in seconds
+     */
+    void setTokenLifetime(long seconds) {
+        tokenLifetimeSeconds = seconds;
+    }
+
+    /**
+     * Simulates a dynamic configuration change, which is indicated by the next fetch.
+     *
+     * @param applyPins is true if the change should also force the pins to be applied
+     */
+    void simulateConfigChange(boolean applyPins) {
+        configVersion.incrementAndGet();
+        configChanged.set(true);
+        if (applyPins)
+            forceApplyPins.set(true);
+    }
+
+    /**
+     * Gets the number of token fetches that have been made.
+     *
+     * @return count of token fetches
+     */
+    long getTokenFetchCount() {
+        return tokenFetchCount.get();
+    }
+
+    /**
+     * Gets the number of secure string fetches that have been made.
+     *
+     * @return count of secure string fetches
+     */
+    long getSecureStringFetchCount() {
+        return secureStringFetchCount.get();
+    }
+
+    /**
+     * Gets the number of times the data hash has been set.
+     *
+     * @return count of data hash updates
+     */
+    long getDataHashCount() {
+        return dataHashCount.get();
+    }
+
+    @Override
+    public void setDevKey(String devKey) {
+    }
+
+    @Override
+    public Result fetchApproovTokenAndWait(String url) {
+        tokenFetchCount.incrementAndGet();
+        simulateLatency();
+        Status status = unprotectedHosts.get(url);
+        if (status == null)
+            status = drawStatus();
+        if (status != Status.SUCCESS)
+            return result(status, "", null);
+        return result(status, getToken(), null);
+    }
+
+    @Override
+    public void fetchApproovToken(final Callback callback, final String url) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.approovCallback(fetchApproovTokenAndWait(url));
+            }
+        });
+    }
+
+    @Override
+    public Result fetchSecureStringAndWait(String key, String newDef) {
+        secureStringFetchCount.incrementAndGet();
+        simulateLatency();
+        Status status = drawStatus();
+        if (status != Status.SUCCESS)
+            return result(status, "", null);
+        if (newDef != null) {
+            if (newDef.isEmpty())
+                secureStrings.remove(key);
+            else
+                secureStrings.put(key, newDef);
+        }
+        String secureString = secureStrings.get(key);
+        if (secureString == null)
+            return result(Status.UNKNOWN_KEY, "", null);
+        return result(Status.SUCCESS, "", secureString);
+    }
+
+    @Override
+    public void fetchSecureString(final Callback callback, final String key, final String newDef) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.approovCallback(fetchSecureStringAndWait(key, newDef));
+            }
+        });
+    }
+
+    @Override
+    public Result fetchCustomJWTAndWait(String payload) {
+        simulateLatency();
+        Status status = drawStatus();
+        if (status != Status.SUCCESS)
+            return result(status, "", null);
+        return result(status, createJWT(payload), null);
+    }
+
+    @Override
+    public Map<String, List<String>> getPins(String pinType) {
+        forceApplyPins.set(false);
+        Map<String, List<String>> allPins = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry: pins.entrySet())
+            allPins.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        return allPins;
+    }
+
+    @Override
+    public String fetchConfig() {
+        configChanged.set(false);
+        return "simulated-config-" + configVersion.get();
+    }
+
+    @Override
+    public void setDataHashInToken(String data) {
+        dataHashCount.incrementAndGet();
+        dataHash = ByteString.encodeUtf8(data).sha256().base64();
+    }
+
+    /**
+     * Gets a token, reusing the most recently issued token if it is for the current data hash and is not
+     * close to expiry, in the same way that the Approov SDK caches tokens.
+     *
+     * @return the token
+     */
+    private synchronized String getToken() {
+        String hash = dataHash;
+        long now = System.currentTimeMillis();
+        boolean sameHash = (hash == null) ? (cachedTokenDataHash == null) : hash.equals(cachedTokenDataHash);
+        if ((cachedToken == null) || !sameHash || (now >= cachedTokenRenewMillis)) {
+            long lifetimeMillis = tokenLifetimeSeconds * 1000;
+            cachedToken = createToken(hash, (now + lifetimeMillis) / 1000);
+            cachedLoggableToken = loggableToken(cachedToken);
+            cachedTokenDataHash = hash;
+            cachedTokenRenewMillis = now + (lifetimeMillis / 2);
+        }
+        return cachedToken;
+    }
+
+    @Override
+    public String getMessageSignature(String message) {
+        return ByteString.encodeUtf8(message).hmacSha256(SIGNING_KEY).base64();
+    }
+
+    @Override
+    public String getDeviceID() {
+        return "c2ltdWxhdGVkLWRldmljZQ==";
+    }
+
+    /**
+     * Waits for a latency drawn from the configured range.
+     */
+    private void simulateLatency() {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        long latency = (max > min) ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Draws a status from the configured distribution.
+     *
+     * @return the drawn status
+     */
+    private Status drawStatus() {
+        synchronized (statusWeights) {
+            int total = 0;
+            for (int weight: statusWeights.values())
+                total += weight;
+            if (total == 0)
+                return Status.SUCCESS;
+            int draw = ThreadLocalRandom.current().nextInt(total);
+            for (Map.Entry<Status, Integer> entry: statusWeights.entrySet()) {
+                draw -= entry.getValue();
+                if (draw < 0)
+                    return entry.getKey();
+            }
+            return Status.SUCCESS;
+        }
+    }
+
+    /**
+     * Creates a result, including any pending indications of configuration changes.
+     *
+     * @param status is the status of the fetch
+     * @param token is any token, or empty if none
+     * @param secureString is any secure string, or null if none
+     * @return the result of the fetch
+     */
+    private Result result(Status status, String token, String secureString) {
+        String arc = (status == Status.REJECTED) ? "SIMULATEDARC" : "";
+        String rejectionReasons = (status == Status.REJECTED) ? "simulated" : "";
+        String loggable;
+        synchronized (this) {
+            loggable = token.equals(cachedToken) ? cachedLoggableToken : loggableToken(token);
+        }
+        return new Result(status, token, secureString, arc, rejectionReasons, loggable,
+                configChanged.get(), forceApplyPins.get());
+    }
+
+    /**
+     * Creates an unsigned token in the form of a JWT with an expiry and any data hash.
+     *
+     * @param hash is any data hash to be included, or null if none
+     * @param expiry is the expiry time of the token in seconds since the epoch
+     * @return the token
+     */
+    private static String createToken(String hash, long expiry) {
+        String payload = "{\"exp\":" + expiry;
+        if (hash != null)
+            payload += ",\"pay\":\"" + hash + "\"";
+        return createJWT(payload + "}");
+    }
+
+    /**
+     * Creates an unsigned JWT with the given payload.
+     *
+     * @param payload is the marshaled JSON payload
+     * @return the JWT
+     */
+    private static String createJWT(String payload) {
+        return base64Url("{\"alg\":\"none\"}") + "." + base64Url(payload) + ".";
+    }
+
+    /**
+     * Encodes a string as unpadded base64url, as used in JWTs.
+     *
+     * @param value is the string to be encoded
+     * @return the encoded string
+     */
+    private static String base64Url(String value) {
+        String encoded = ByteString.encodeUtf8(value).base64Url();
+        int end = encoded.length();
+        while ((end > 0) && (encoded.charAt(end - 1) == '='))
+            end--;
+        return encoded.substring(0, end);
+    }
+
+    /**
+     * Creates the loggable form of a token, which is its decoded payload.
+     *
+     * @param token is the token
+     * @return the loggable form of the token
+     */
+    private static String loggableToken(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length < 2)
+            return "{}";
+        ByteString payload = ByteString.decodeBase64(parts[1]);
+        return (payload == null) ? "{}" : payload.utf8();
+    }
+}
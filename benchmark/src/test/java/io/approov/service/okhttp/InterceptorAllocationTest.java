@@ -0,0 +1,131 @@
+//
+// MIT License
+// 
+// Copyright (c) 2016-present, Critical Blue Ltd.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+// (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge,
+// publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+// subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+// ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH
+// THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+package io.approov.service.okhttp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+
+// InterceptorAllocationTest checks that the bytes allocated by ApproovTokenInterceptor.intercept for each
+// request stay within fixed limits, so that a regression in the per request allocations fails a test rather
+// than only being visible in the benchmark results. Like the benchmarks, the test is only run when the
+// benchmark module is included with -PapproovBenchmarks, and is not part of the library build. The limits
+// have some headroom over the measured allocations to allow for differences between JVMs.
+public class InterceptorAllocationTest {
+    // number of requests made before measuring, so that the code has been compiled
+    private static final int WARMUP_REQUESTS = 20000;
+
+    // number of requests over which the allocations are measured
+    private static final int MEASURED_REQUESTS = 20000;
+
+    // host used for all of the requests
+    private static final String HOST = "api.example.com";
+
+    @Test
+    public void noConfig() throws IOException {
+        ApproovService.initialize(new SimulatedApproovSdk());
+        assertAllocationsAtMost(new Request.Builder().url("https://" + HOST + "/v1/items").build(), 1600);
+    }
+
+    @Test
+    public void exclusionRegexs() throws IOException {
+        ApproovService.initialize(new SimulatedApproovSdk());
+        for (int i = 0; i < 40; i++)
+            ApproovService.addExclusionURLRegex("^https://cdn" + i + "\\.example\\.net/");
+        assertAllocationsAtMost(new Request.Builder().url("https://" + HOST + "/v1/items").build(), 1600);
+    }
+
+    @Test
+    public void substitutions() throws IOException {
+        SimulatedApproovSdk sdk = new SimulatedApproovSdk();
+        ApproovService.initialize(sdk);
+        HttpUrl.Builder urlBuilder = HttpUrl.get("https://" + HOST + "/v1/items").newBuilder();
+        Request.Builder requestBuilder = new Request.Builder();
+        for (int i = 0; i < 4; i++) {
+            ApproovService.addSubstitutionHeader("Api-Key-" + i, null);
+            sdk.setSecureString("header-key-" + i, "header-secret-" + i);
+            requestBuilder.header("Api-Key-" + i, "header-key-" + i);
+            ApproovService.addSubstitutionQueryParam("key" + i);
+            sdk.setSecureString("query-key-" + i, "query-secret-" + i);
+            urlBuilder.addQueryParameter("key" + i, "query-key-" + i);
+        }
+        assertAllocationsAtMost(requestBuilder.url(urlBuilder.build()).build(), 9600);
+    }
+
+    @Test
+    public void bindingHeader() throws IOException {
+        ApproovService.initialize(new SimulatedApproovSdk());
+        ApproovService.setBindingHeader("Authorization");
+        Request request = new Request.Builder()
+                .url("https://" + HOST + "/v1/items")
+                .header("Authorization", "Bearer test-user-token")
+                .build();
+        assertAllocationsAtMost(request, 1800);
+    }
+
+    /**
+     * Intercepts a request repeatedly and checks the average number of bytes allocated for each.
+     *
+     * @param request is the request to be intercepted
+     * @param maxBytes is the maximum average number of bytes that may be allocated for each request
+     * @throws IOException if the interceptor failed
+     */
+    private static void assertAllocationsAtMost(Request request, long maxBytes) throws IOException {
+        Interceptor interceptor = findInterceptor();
+        FakeChain chain = new FakeChain(request);
+        for (int i = 0; i < WARMUP_REQUESTS; i++)
+            interceptor.intercept(chain);
+        long startBytes = allocatedBytes();
+        for (int i = 0; i < MEASURED_REQUESTS; i++)
+            interceptor.intercept(chain);
+        long bytesPerRequest = (allocatedBytes() - startBytes) / MEASURED_REQUESTS;
+        assertTrue("allocated " + bytesPerRequest + " bytes per request, limit is " + maxBytes,
+                bytesPerRequest <= maxBytes);
+    }
+
+    /**
+     * Gets the total number of bytes allocated by the current thread.
+     *
+     * @return allocated bytes
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Finds the Approov interceptor in the default client.
+     *
+     * @return the Approov interceptor
+     */
+    private static Interceptor findInterceptor() {
+        for (Interceptor interceptor: ApproovService.getOkHttpClient().interceptors()) {
+            if (interceptor instanceof ApproovTokenInterceptor)
+                return interceptor;
+        }
+        throw new IllegalStateException("no Approov interceptor");
+    }
+}